@@ -1,46 +1,181 @@
 package com.interpreter.lox;
 
 import com.interpreter.lox.interpreter.Interpreter;
+import com.interpreter.lox.lexer.ByteSource;
 import com.interpreter.lox.lexer.Scanner;
 import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.lexer.TokenBuffer;
 import com.interpreter.lox.parser.*;
 import com.interpreter.lox.util.RuntimeError;
 import com.interpreter.lox.interpreter.Resolver;
+import com.interpreter.lox.interpreter.AotCompiler;
+import com.interpreter.lox.vm.Compiler;
+import com.interpreter.lox.vm.ObjFunction;
+import com.interpreter.lox.vm.VM;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static com.interpreter.lox.lexer.TokenType.EOF;
 
 public class Lox {
+    private enum Engine {
+        TREE,
+        NODES,
+        VM
+    }
+
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     public static long startTime;
 
     private static final Interpreter interpreter = new Interpreter();
+    private static VM vm;
+    private static Engine engine = Engine.TREE;
+    // How deep Lox calls may nest, VM.DEFAULT_MAX_FRAMES unless --max-depth
+    // is given. The VM keeps its frames on the heap; the other engines nest
+    // calls on the Java stack and count them, so every engine stops with
+    // "Stack overflow." exactly there. The interpreter thread has
+    // BASE_STACK_SIZE plus STACK_PER_CALL for every call allowed, which is
+    // only reserved until deep recursion uses it.
+    private static int maxDepth = VM.DEFAULT_MAX_FRAMES;
+    private static boolean maxDepthGiven = false;
+    // About twice what a call takes in the tree engine when HotSpot runs it
+    // interpreted (2.2 KB measured), leaving room for nested expressions.
+    private static final long STACK_PER_CALL = 4096;
+    private static final long BASE_STACK_SIZE = 64L << 20;
+    // Run each top-level declaration as soon as it has been parsed.
+    private static boolean stream = false;
+    // Set on the threads of a parallel front end, which hold their errors
+    // back so that they can be reported in source order.
+    private static final ThreadLocal<List<String>> deferredErrors = new ThreadLocal<>();
 
     public static void main(String[] args) throws IOException {
         startTime = System.currentTimeMillis();
 
+        String script = null;
+        String output = null;
+        boolean compile = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--engine=tree")) {
+                engine = Engine.TREE;
+            } else if (arg.equals("--engine=nodes")) {
+                engine = Engine.NODES;
+            } else if (arg.equals("--engine=vm")) {
+                engine = Engine.VM;
+            } else if (arg.startsWith("--max-depth=")) {
+                setMaxDepth(depth(arg.substring("--max-depth=".length())));
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--jit")) {
+                interpreter.enableJit();
+            } else if (arg.equals("--compile")) {
+                compile = true;
+            } else if (arg.equals("-o") && i + 1 < args.length && output == null) {
+                output = args[++i];
+            } else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                usage();
+            }
+        }
 
-        if (args.length > 2) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        if (compile) {
+            if (script == null) usage();
+            if (output == null) output = script.replaceFirst("(\\.lox)?$", ".jar");
+            compileFile(script, output);
+        } else if (output != null) {
+            usage();
+        } else if (script != null) {
+            String path = script;
+            runWithStack(() -> runFile(path));
         } else {
-            runPrompt();
+            runWithStack(Lox::runPrompt);
+        }
+    }
+
+    // Entry point of programs compiled ahead of time. They run on a "lox"
+    // thread as the interpreter does, sized for the depth given when the
+    // program was compiled (0 if none was) or to the program itself.
+    public static void runCompiled(String[] args, int depth, Consumer<Interpreter> program)
+            throws IOException {
+        startTime = System.currentTimeMillis();
+        if (depth > 0) setMaxDepth(depth);
+        for (String arg : args) {
+            if (!arg.startsWith("--max-depth=")) {
+                System.out.println("Usage: java -jar program.jar [--max-depth=n]");
+                System.exit(64);
+            }
+            setMaxDepth(depth(arg.substring("--max-depth=".length())));
         }
+        runWithStack(() -> {
+            program.accept(interpreter);
+            finish();
+        });
+    }
+
+    private static void setMaxDepth(int depth) {
+        maxDepth = depth;
+        maxDepthGiven = true;
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private static void runWithStack(Task task) throws IOException {
+        Throwable[] failure = new Throwable[1];
+        long stackSize = 0;
+        if (engine != Engine.VM) {
+            interpreter.setMaxDepth(maxDepth);
+            stackSize = BASE_STACK_SIZE + maxDepth * STACK_PER_CALL;
+        }
+        Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable error) {
+                failure[0] = error;
+            }
+        }, "lox", stackSize);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure[0] instanceof IOException) throw (IOException) failure[0];
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|nodes|vm] [--jit] [--max-depth=n] [--stream] [script]\n"
+                + "       jlox --compile script [-o script.jar]");
+        System.exit(64);
+    }
+
+    private static int depth(String value) {
+        try {
+            int depth = Integer.parseInt(value);
+            if (depth > 0) return depth;
+        } catch (NumberFormatException ignored) {
+            // Reported below.
+        }
+        usage();
+        return 0;
     }
 
     private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
+        InputStreamReader input = new InputStreamReader(System.in, StandardCharsets.UTF_8);
         BufferedReader reader = new BufferedReader(input);
 
         while (true) {
@@ -58,33 +193,74 @@ public class Lox {
 
     private static void runFile(String path) throws IOException {
         Path p = Paths.get(path);
-        byte[] bytes = Files.readAllBytes(p);
-        run(new String(bytes, Charset.defaultCharset()));
+        CharSequence source = ByteSource.map(p);
+        if (stream) {
+            runStreaming(source);
+        } else {
+            run(source);
+        }
         if (hadError)
             System.exit(65);
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static void compileFile(String path, String output) throws IOException {
+        List<Stmt> statements = parse(ByteSource.map(Paths.get(path)));
+        if (hadError)
+            System.exit(65);
 
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        int depth = maxDepthGiven ? maxDepth : 0;
+        if (!new AotCompiler(depth).compile(statements, Paths.get(output)))
+            System.exit(70);
+    }
 
-        for(Token token:tokens){
-            //System.out.println(token);
-        }
+    private static void run(CharSequence source) {
+        List<Stmt> statements = parse(source);
+        if (hadError) return;
 
-        if (hadError)
-            return;
+        execute(statements);
+        if (hadError) return;
+        finish();
+    }
 
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+    // Scans, parses, resolves and runs one top-level declaration at a
+    // time, so output starts right away and the tokens and AST of
+    // declarations that have run can be collected. Unlike run(), code
+    // before a syntax error has already run when the error is found; the
+    // rest of the source is still parsed to report any other errors.
+    private static void runStreaming(CharSequence source) {
+        Parser parser = new Parser(new Scanner(source).streamTokens());
+        Resolver resolver = new Resolver();
+        while (parser.hasNext()) {
+            Stmt statement = parser.nextDeclaration();
+            if (hadError) continue;
 
+            List<Stmt> statements = List.of(statement);
+            resolver.resolve(statements);
+            if (hadError) continue;
+            execute(statements);
+            if (hadRuntimeError) break;
+        }
         if (hadError) return;
+        finish();
+    }
 
-        interpreter.interpret(statements);
+    private static void execute(List<Stmt> statements) {
+        if (engine == Engine.VM) {
+            ObjFunction function = new Compiler().compile(statements);
+            if (hadError) return;
+            // The VM's frames include the one running the top-level script.
+            if (vm == null) vm = new VM((int) Math.min(maxDepth + 1L, Integer.MAX_VALUE));
+            vm.interpret(function);
+        } else if (engine == Engine.NODES) {
+            interpreter.interpretNodes(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
 
+    // Exits after a runtime error; otherwise reports how long the program
+    // took. Also called by programs compiled ahead of time.
+    public static void finish() {
         if (hadRuntimeError)
             System.exit(70);
 
@@ -95,6 +271,28 @@ public class Lox {
         // System.out.println(new ASTPrinter().print(expression));
     }
 
+    // Scans, parses and resolves; the statements are only usable if no
+    // error was reported.
+    private static List<Stmt> parse(CharSequence source) {
+        Scanner scanner = new Scanner(source);
+        TokenBuffer tokens = scanner.scanTokens();
+
+        if (ParallelFrontEnd.worthwhile(tokens)) {
+            List<Stmt> statements = ParallelFrontEnd.parse(tokens);
+            if (statements != null) return statements;
+        }
+
+        Parser parser = new Parser(tokens);
+        List<Stmt> statements = parser.parse();
+
+        if (hadError)
+            return statements;
+
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        return statements;
+    }
+
     public static void error(int line, String message) {
         report(line, "", message);
     }
@@ -108,12 +306,38 @@ public class Lox {
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 
+    // Runs task on this thread and returns the errors it reported, instead
+    // of printing them.
+    static List<String> deferErrors(Runnable task) {
+        List<String> errors = new ArrayList<>();
+        deferredErrors.set(errors);
+        try {
+            task.run();
+        } finally {
+            deferredErrors.remove();
+        }
+        return errors;
+    }
+
+    static void reportDeferred(List<String> errors) {
+        for (String error : errors) {
+            System.err.println(error);
+            hadError = true;
+        }
+    }
+
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+        String error = "[line " + line + "] Error" + where + ": " + message;
+        List<String> deferred = deferredErrors.get();
+        if (deferred != null) {
+            deferred.add(error);
+            return;
+        }
+        System.err.println(error);
         hadError = true;
     }
 
@@ -0,0 +1,106 @@
+package com.interpreter.lox;
+
+import com.interpreter.lox.interpreter.Resolver;
+import com.interpreter.lox.lexer.TokenBuffer;
+import com.interpreter.lox.parser.Parser;
+import com.interpreter.lox.parser.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Parses and resolves the top-level declarations of a large source on the
+// common ForkJoinPool. Outside of any braces or parentheses 'fun' and
+// 'class' can only start a new declaration, so the tokens are cut there
+// into runs of declarations that are parsed and resolved each on their
+// own: top-level code shares no scope, since globals are looked up by
+// name at runtime.
+//
+// Each run holds back its errors, and they are reported in source order
+// once all runs are done. A syntax error anywhere makes the whole source
+// be parsed again on one thread instead, since a run cut short by an
+// error may not recover from it the way the whole source would.
+final class ParallelFrontEnd {
+    // Sources with fewer tokens than this are not worth splitting.
+    static final int THRESHOLD = 1 << 16;
+
+    private ParallelFrontEnd() {}
+
+    private static final class Run {
+        List<Stmt> statements;
+        List<String> syntaxErrors;
+        List<String> resolveErrors;
+    }
+
+    static boolean worthwhile(TokenBuffer tokens) {
+        return tokens.end() >= THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    // The resolved statements, or null if there was a syntax error, which
+    // has not been reported.
+    static List<Stmt> parse(TokenBuffer tokens) {
+        int[] bounds = split(tokens, ForkJoinPool.getCommonPoolParallelism() * 4);
+        List<ForkJoinTask<Run>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i];
+            int to = bounds[i + 1];
+            tasks.add(ForkJoinPool.commonPool().submit(() -> parse(tokens, from, to)));
+        }
+
+        List<Run> runs = new ArrayList<>();
+        int count = 0;
+        for (ForkJoinTask<Run> task : tasks) {
+            Run run = task.join();
+            if (!run.syntaxErrors.isEmpty()) return null;
+            runs.add(run);
+            count += run.statements.size();
+        }
+
+        List<Stmt> statements = new ArrayList<>(count);
+        for (Run run : runs) {
+            statements.addAll(run.statements);
+            Lox.reportDeferred(run.resolveErrors);
+        }
+        return statements;
+    }
+
+    private static Run parse(TokenBuffer tokens, int from, int to) {
+        Run run = new Run();
+        run.syntaxErrors = Lox.deferErrors(
+                () -> run.statements = new Parser(tokens, from, to).parse());
+        if (run.syntaxErrors.isEmpty()) {
+            run.resolveErrors = Lox.deferErrors(() -> new Resolver().resolve(run.statements));
+        }
+        return run;
+    }
+
+    // Token indices that cut the declarations into about count runs, the
+    // last one ending at EOF.
+    private static int[] split(TokenBuffer tokens, int count) {
+        int length = tokens.end() - 1;
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        int depth = 0;
+        for (int i = 0; i < length; i++) {
+            switch (tokens.type(i)) {
+                case LEFT_BRACE:
+                case LEFT_PAREN:
+                    depth++;
+                    break;
+                case RIGHT_BRACE:
+                case RIGHT_PAREN:
+                    depth--;
+                    break;
+                case FUN:
+                case CLASS:
+                    if (depth == 0 && i >= (long) length * bounds.size() / count) {
+                        bounds.add(i);
+                    }
+                    break;
+            }
+        }
+        bounds.add(length + 1);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
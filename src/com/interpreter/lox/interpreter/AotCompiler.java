@@ -0,0 +1,167 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.parser.Stmt;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+// Compiles a resolved program ahead of time into a runnable jar. Every
+// function becomes a CompiledFunction class and the top-level code one
+// more, all generated by the JavaGenerator the JIT uses; the interpreter's
+// own classes are bundled as the runtime library they call into.
+public class AotCompiler {
+    private static final String PACKAGE = "com.interpreter.lox.interpreter.";
+    private static final String RUNTIME = "com/interpreter/lox/";
+    private static final String MAIN = "AotMain";
+    private static final String PROGRAM = "Aot$program";
+
+    // A fresh interpreter's globals, so that slots are handed out exactly
+    // as they will be when the jar runs.
+    private final GlobalTable globals = new Interpreter().globals;
+    private final Map<String, String> sources = new LinkedHashMap<>();
+    // The class of each function, which is generated once even when the
+    // code declaring it is generated again split up.
+    private final Map<Stmt.Function, String> classes = new IdentityHashMap<>();
+    private int classCount = 0;
+    // The --max-depth the program runs with unless it is given one, or 0.
+    private final int maxDepth;
+
+    public AotCompiler(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    // Reports false, after printing why, if the jar could not be built.
+    public boolean compile(List<Stmt> statements, Path output) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            System.err.println("Compiling to a jar needs a JDK.");
+            return false;
+        }
+
+        JavaGenerator generator = new JavaGenerator(globals, this::classFor, false);
+        String program = generator.generateProgram(PROGRAM, statements);
+        if (generator.tooLarge()) {
+            generator = new JavaGenerator(globals, this::classFor, true);
+            program = generator.generateProgram(PROGRAM, statements);
+        }
+        sources.put(PROGRAM, program);
+        sources.put(MAIN, main());
+
+        Map<String, byte[]> classes = SourceCompiler.compile(javac, sources,
+                diagnostic -> System.err.println(diagnostic.getMessage(null)));
+        if (classes == null) return false;
+
+        writeJar(classes, output);
+        return true;
+    }
+
+    private String classFor(Stmt.Function function, boolean isMethod) {
+        String className = classes.get(function);
+        if (className != null) return className;
+
+        className = "Aot$" + function.name.lexeme + "$" + classCount++;
+        classes.put(function, className);
+        JavaGenerator generator = new JavaGenerator(globals, this::classFor, false);
+        String source = generator.generate(className, function, isMethod);
+        if (generator.tooLarge()) {
+            generator = new JavaGenerator(globals, this::classFor, true);
+            source = generator.generate(className, function, isMethod);
+        }
+        sources.put(className, source);
+        return className;
+    }
+
+    // The entry point registers the globals the generated code refers to
+    // by slot, in slot order, before running the program on the stack Lox
+    // gives the interpreter.
+    private String main() {
+        StringBuilder names = new StringBuilder();
+        for (String name : globals.names()) {
+            if (names.length() > 0) names.append(", ");
+            names.append('"').append(name).append('"');
+        }
+
+        return "package com.interpreter.lox.interpreter;\n\n"
+                + "import com.interpreter.lox.Lox;\n\n"
+                + "import java.io.IOException;\n\n"
+                + "public final class " + MAIN + " {\n"
+                + "    private static final String[] GLOBALS = {" + names + "};\n\n"
+                + "    public static void main(String[] args) throws IOException {\n"
+                + "        Lox.runCompiled(args, " + maxDepth + ", interpreter ->\n"
+                + "                interpreter.interpretCompiled(new " + PROGRAM + "(), GLOBALS));\n"
+                + "    }\n"
+                + "}\n";
+    }
+
+    private void writeJar(Map<String, byte[]> classes, Path output) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, PACKAGE + MAIN);
+
+        Set<String> written = new HashSet<>();
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(output), manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                String name = entry.getKey().replace('.', '/') + ".class";
+                written.add(name);
+                jar.putNextEntry(new JarEntry(name));
+                jar.write(entry.getValue());
+                jar.closeEntry();
+            }
+            for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                copyRuntime(Paths.get(path), jar, written);
+            }
+        }
+    }
+
+    // Copies the interpreter's classes from one class path entry, which is
+    // either a directory or a jar.
+    private void copyRuntime(Path path, JarOutputStream jar, Set<String> written)
+            throws IOException {
+        if (Files.isDirectory(path)) {
+            Path root = path.resolve(RUNTIME);
+            if (!Files.isDirectory(root)) return;
+            try (Stream<Path> files = Files.walk(root)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = path.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (!name.endsWith(".class") || !written.add(name)) continue;
+                    jar.putNextEntry(new JarEntry(name));
+                    Files.copy(file, jar);
+                    jar.closeEntry();
+                }
+            }
+        } else if (Files.isRegularFile(path)) {
+            try (JarFile source = new JarFile(path.toFile())) {
+                for (JarEntry entry : (Iterable<JarEntry>) source.stream()::iterator) {
+                    String name = entry.getName();
+                    if (!name.startsWith(RUNTIME) || !name.endsWith(".class")
+                            || !written.add(name)) {
+                        continue;
+                    }
+                    jar.putNextEntry(new JarEntry(name));
+                    try (InputStream in = source.getInputStream(entry)) {
+                        in.transferTo(jar);
+                    }
+                    jar.closeEntry();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.interpreter.lox.interpreter;
+
+// Entry point of a function body that the JIT compiled to a JVM class.
+// It takes the same frame as an interpreted call, holding the receiver and
+// the arguments, and returns the value of the function's 'return' (nil if
+// it runs off the end).
+interface CompiledFunction {
+    // Returned instead of a value when the arguments break a speculation
+    // the code was compiled under. The checks run on entry, before any side
+    // effect, so the caller can run the call in the interpreter instead.
+    Object DEOPTIMIZE = new Object();
+
+    Object call(Interpreter interpreter, Environment frame);
+}
@@ -0,0 +1,13 @@
+package com.interpreter.lox.interpreter;
+
+// The rest of a hot loop, compiled to take over from the interpreter at a
+// back-edge. It runs in the frame of the interpreted loop and returns
+// StmtNode.NORMAL when the loop ends, or the value of a 'return' in it.
+interface CompiledLoop {
+    // Returned without running anything when the variables the loop uses
+    // break a speculation it was compiled under; the interpreter carries on
+    // with the loop instead.
+    Object DEOPTIMIZE = CompiledFunction.DEOPTIMIZE;
+
+    Object run(Interpreter interpreter, Environment frame);
+}
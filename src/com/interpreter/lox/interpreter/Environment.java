@@ -1,63 +1,47 @@
 package com.interpreter.lox.interpreter;
 
-import com.interpreter.lox.lexer.Token;
-import com.interpreter.lox.util.RuntimeError;
-
-import java.util.HashMap;
-import java.util.Map;
-
+// The frame of a running function: a fixed number of slots, assigned by the
+// Resolver, for its parameters and the locals of all its blocks. Variables
+// of enclosing functions are reached through the upvalues the function's
+// closure captured when it was created. Globals live in the GlobalTable.
 public class Environment {
-    public final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private static final Upvalue[] NO_UPVALUES = new Upvalue[0];
 
-    public Environment() {
-        enclosing = null;
-    }
+    public final Upvalue[] upvalues;
+    private final Object[] slots;
 
-    public Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    public Environment(int size, Upvalue[] upvalues) {
+        this.upvalues = upvalues;
+        this.slots = new Object[size];
     }
 
-
-    public void define(String name, Object value) {
-        values.put(name, value);
+    public Object get(int slot) {
+        return slots[slot];
     }
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
-        }
 
-        return environment;
-    }
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
-    }
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    public void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
-    public Object get(Token name) {
-        if(values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if(enclosing != null) {
-            return enclosing.get(name);
-        }
-        throw  new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    // A captured local, whose slot holds its Upvalue.
+    Object getCell(int slot) {
+        return ((Upvalue) slots[slot]).value;
     }
 
-    public void assign(Token name, Object value) {
-        if(values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+    void assignCell(int slot, Object value) {
+        ((Upvalue) slots[slot]).value = value;
+    }
 
-        if(enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    // The upvalues for a closure created in this frame, from the captures
+    // the Resolver recorded: a slot of this frame for c >= 0, or upvalue
+    // -1 - c of this frame's own closure otherwise.
+    Upvalue[] capture(int[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
+        Upvalue[] captured = new Upvalue[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int c = captures[i];
+            captured[i] = c >= 0 ? (Upvalue) slots[c] : upvalues[-1 - c];
         }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return captured;
     }
 }
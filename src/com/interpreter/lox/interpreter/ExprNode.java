@@ -0,0 +1,918 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.parser.Stmt;
+import com.interpreter.lox.util.RuntimeError;
+
+
+abstract class ExprNode extends Node {
+    abstract Object execute(Environment environment);
+
+    // Typed entry points. Nodes that produce a primitive override these to
+    // skip boxing; a value of the wrong type comes back through
+    // UnexpectedResultException so the caller can carry on generically.
+    double executeDouble(Environment environment) throws UnexpectedResultException {
+        return expectDouble(execute(environment));
+    }
+
+    boolean executeCondition(Environment environment) {
+        return Interpreter.isTruthy(execute(environment));
+    }
+
+    static double expectDouble(Object value) throws UnexpectedResultException {
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResultException(value);
+    }
+
+    static class UnexpectedResultException extends Exception {
+        final Object result;
+
+        UnexpectedResultException(Object result) {
+            super(null, null, false, false);
+            this.result = result;
+        }
+    }
+
+    static class Constant extends ExprNode {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value;
+        }
+    }
+
+    static class ReadLocal extends ExprNode {
+        private final int slot;
+
+        ReadLocal(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.get(slot);
+        }
+    }
+
+    // A local that a closure captured, kept in an Upvalue in its slot.
+    static class ReadCell extends ExprNode {
+        private final int slot;
+
+        ReadCell(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.getCell(slot);
+        }
+    }
+
+    // A variable of an enclosing function.
+    static class ReadUpvalue extends ExprNode {
+        private final int index;
+
+        ReadUpvalue(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.upvalues[index].value;
+        }
+    }
+
+    static class ReadGlobal extends ExprNode {
+        private final GlobalTable globals;
+        private final int slot;
+        private final Token name;
+
+        ReadGlobal(GlobalTable globals, int slot, Token name) {
+            this.globals = globals;
+            this.slot = slot;
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return globals.get(slot, name);
+        }
+    }
+
+    // Base for assignments to locals and upvalues.
+    abstract static class WriteVariable extends ExprNode {
+        final int slot;
+        ExprNode value;
+
+        WriteVariable(int slot, ExprNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child != value) super.replaceChild(child, replacement);
+            value = (ExprNode) replacement;
+        }
+    }
+
+    static class WriteLocal extends WriteVariable {
+        WriteLocal(int slot, ExprNode value) {
+            super(slot, value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.define(slot, result);
+            return result;
+        }
+    }
+
+    static class WriteCell extends WriteVariable {
+        WriteCell(int slot, ExprNode value) {
+            super(slot, value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.assignCell(slot, result);
+            return result;
+        }
+    }
+
+    static class WriteUpvalue extends WriteVariable {
+        WriteUpvalue(int index, ExprNode value) {
+            super(index, value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.upvalues[slot].value = result;
+            return result;
+        }
+    }
+
+    static class WriteGlobal extends ExprNode {
+        private final GlobalTable globals;
+        private final int slot;
+        private final Token name;
+        private ExprNode value;
+
+        WriteGlobal(GlobalTable globals, int slot, Token name, ExprNode value) {
+            this.globals = globals;
+            this.slot = slot;
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            globals.assign(slot, name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child != value) super.replaceChild(child, replacement);
+            value = (ExprNode) replacement;
+        }
+    }
+
+    abstract static class Binary extends ExprNode {
+        final Token operator;
+        ExprNode left;
+        ExprNode right;
+
+        Binary(Token operator, ExprNode left, ExprNode right) {
+            this.operator = operator;
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child == left) {
+                left = (ExprNode) replacement;
+            } else if (child == right) {
+                right = (ExprNode) replacement;
+            } else {
+                super.replaceChild(child, replacement);
+            }
+        }
+
+        RuntimeError operandsError() {
+            return new RuntimeError(operator, "Operands must be numbers");
+        }
+    }
+
+    // '+' before its first execution. It looks at the operands it gets and
+    // rewrites itself into the node for that combination of types.
+    static class UninitializedAdd extends Binary {
+        UninitializedAdd(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object l = left.execute(environment);
+            Object r = right.execute(environment);
+
+            if (replaced) {
+                // Specialized already by a nested execution.
+            } else if (l instanceof Double && r instanceof Double) {
+                replace(new AddNumbers(operator, left, right));
+            } else if (l instanceof String
+                    && (r instanceof String || r instanceof Double)) {
+                replace(new Concat(operator, left, right));
+            } else {
+                replace(new AddGeneric(operator, left, right));
+            }
+            return Interpreter.binaryOp(operator, l, r);
+        }
+    }
+
+    static class AddNumbers extends Binary {
+        AddNumbers(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            try {
+                return executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return e.result;
+            }
+        }
+
+        @Override
+        double executeDouble(Environment environment) throws UnexpectedResultException {
+            double l;
+            try {
+                l = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return generalize(e.result, right.execute(environment));
+            }
+            double r;
+            try {
+                r = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return generalize(l, e.result);
+            }
+            return l + r;
+        }
+
+        private double generalize(Object l, Object r) throws UnexpectedResultException {
+            if (!replaced) replace(new AddGeneric(operator, left, right));
+            return expectDouble(Interpreter.binaryOp(operator, l, r));
+        }
+    }
+
+    static class Concat extends Binary {
+        Concat(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object l = left.execute(environment);
+            Object r = right.execute(environment);
+            if (l instanceof String) {
+                if (r instanceof String) return (String) l + (String) r;
+                if (r instanceof Double) return l + Interpreter.stringify(r);
+            }
+            if (!replaced) replace(new AddGeneric(operator, left, right));
+            return Interpreter.binaryOp(operator, l, r);
+        }
+    }
+
+    static class AddGeneric extends Binary {
+        AddGeneric(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object l = left.execute(environment);
+            Object r = right.execute(environment);
+            return Interpreter.binaryOp(operator, l, r);
+        }
+    }
+
+    // '-', '*' and '/' only accept numbers, so they are specialized from
+    // the start and a non-number operand is an error rather than a rewrite.
+    abstract static class Arithmetic extends Binary {
+        Arithmetic(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        abstract double apply(double l, double r);
+
+        @Override
+        Object execute(Environment environment) {
+            return executeDouble(environment);
+        }
+
+        @Override
+        double executeDouble(Environment environment) {
+            double l;
+            try {
+                l = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                right.execute(environment);
+                throw operandsError();
+            }
+            double r;
+            try {
+                r = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+            return apply(l, r);
+        }
+    }
+
+    static class Subtract extends Arithmetic {
+        Subtract(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double l, double r) {
+            return l - r;
+        }
+    }
+
+    static class Multiply extends Arithmetic {
+        Multiply(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double l, double r) {
+            return l * r;
+        }
+    }
+
+    static class Divide extends Arithmetic {
+        Divide(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double l, double r) {
+            return l / r;
+        }
+    }
+
+    abstract static class Comparison extends Binary {
+        Comparison(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        abstract boolean test(double l, double r);
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            double l;
+            try {
+                l = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                right.execute(environment);
+                throw operandsError();
+            }
+            double r;
+            try {
+                r = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                throw operandsError();
+            }
+            return test(l, r);
+        }
+    }
+
+    static class Greater extends Comparison {
+        Greater(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean test(double l, double r) {
+            return l > r;
+        }
+    }
+
+    static class GreaterEqual extends Comparison {
+        GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean test(double l, double r) {
+            return l >= r;
+        }
+    }
+
+    static class Less extends Comparison {
+        Less(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean test(double l, double r) {
+            return l < r;
+        }
+    }
+
+    static class LessEqual extends Comparison {
+        LessEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean test(double l, double r) {
+            return l <= r;
+        }
+    }
+
+    static class Equality extends Binary {
+        private final boolean negated;
+
+        Equality(Token operator, ExprNode left, ExprNode right, boolean negated) {
+            super(operator, left, right);
+            this.negated = negated;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            Object l = left.execute(environment);
+            Object r = right.execute(environment);
+            return Interpreter.isEqual(l, r) != negated;
+        }
+    }
+
+    static class Logical extends Binary {
+        private final boolean isOr;
+
+        Logical(Token operator, ExprNode left, ExprNode right, boolean isOr) {
+            super(operator, left, right);
+            this.isOr = isOr;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object l = left.execute(environment);
+            if (Interpreter.isTruthy(l) == isOr) return l;
+            return right.execute(environment);
+        }
+    }
+
+    static class Negate extends ExprNode {
+        private final Token operator;
+        private ExprNode operand;
+
+        Negate(Token operator, ExprNode operand) {
+            this.operator = operator;
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeDouble(environment);
+        }
+
+        @Override
+        double executeDouble(Environment environment) {
+            try {
+                return -operand.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                throw new RuntimeError(operator, "Operand must be a number");
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child != operand) super.replaceChild(child, replacement);
+            operand = (ExprNode) replacement;
+        }
+    }
+
+    static class Not extends ExprNode {
+        private ExprNode operand;
+
+        Not(ExprNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            return !operand.executeCondition(environment);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child != operand) super.replaceChild(child, replacement);
+            operand = (ExprNode) replacement;
+        }
+    }
+
+    // Shared by the call nodes: evaluates the arguments and performs the
+    // checks that Interpreter.call() does. A call in tail position returns
+    // a TailCall for Lox functions instead of making the call.
+    abstract static class CallBase extends ExprNode {
+        final Interpreter interpreter;
+        final Token paren;
+        final ExprNode[] arguments;
+        final boolean tailCall;
+
+        CallBase(Interpreter interpreter, Token paren, ExprNode[] arguments,
+                 boolean tailCall) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.arguments = arguments;
+            this.tailCall = tailCall;
+            for (ExprNode argument : arguments) adopt(argument);
+        }
+
+        Object[] evaluateArguments(Environment environment) {
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].execute(environment);
+            }
+            return values;
+        }
+
+        // Evaluates the arguments straight into a callee's frame.
+        void evaluateArguments(Environment environment, Environment frame, int first) {
+            for (int i = 0; i < arguments.length; i++) {
+                frame.define(first + i, arguments[i].execute(environment));
+            }
+        }
+
+        // Picks the calling convention as Interpreter.call() does.
+        Object call(Object callee, Environment environment) {
+            if (callee instanceof LoxFunction
+                    && ((LoxFunction) callee).arity() == arguments.length) {
+                return call((LoxFunction) callee, environment);
+            }
+            if (callee instanceof LoxCallable
+                    && ((LoxCallable) callee).arity() == arguments.length
+                    && arguments.length <= 4) {
+                try {
+                    return callDirect((LoxCallable) callee, environment);
+                } catch (StackOverflowError error) {
+                    throw stackOverflow();
+                }
+            }
+
+            Object[] values = evaluateArguments(environment);
+            if (!(callee instanceof LoxCallable)) {
+                throw new RuntimeError(paren, "Can only call functions and classes.");
+            }
+            LoxCallable function = (LoxCallable) callee;
+            checkArity(function);
+            try {
+                return function.call(interpreter, values);
+            } catch (StackOverflowError error) {
+                throw stackOverflow();
+            }
+        }
+
+        // A Lox function of the right arity.
+        Object call(LoxFunction function, Environment environment) {
+            Environment frame = function.frame();
+            evaluateArguments(environment, frame, function.firstParameter());
+            if (tailCall) return new TailCall(function, frame);
+            try {
+                return function.call(interpreter, frame);
+            } catch (StackOverflowError error) {
+                throw stackOverflow();
+            }
+        }
+
+        private Object callDirect(LoxCallable function, Environment environment) {
+            switch (arguments.length) {
+                case 0:
+                    return function.call0(interpreter);
+                case 1:
+                    return function.call1(interpreter, arguments[0].execute(environment));
+                case 2: {
+                    Object a = arguments[0].execute(environment);
+                    return function.call2(interpreter, a, arguments[1].execute(environment));
+                }
+                case 3: {
+                    Object a = arguments[0].execute(environment);
+                    Object b = arguments[1].execute(environment);
+                    return function.call3(interpreter, a, b, arguments[2].execute(environment));
+                }
+                default: {
+                    Object a = arguments[0].execute(environment);
+                    Object b = arguments[1].execute(environment);
+                    Object c = arguments[2].execute(environment);
+                    return function.call4(interpreter, a, b, c,
+                            arguments[3].execute(environment));
+                }
+            }
+        }
+
+        Object callMethod(LoxFunction method, LoxInstance receiver, Environment environment) {
+            if (method.arity() != arguments.length) {
+                evaluateArguments(environment);
+                checkArity(method);
+            }
+            Environment frame = method.frame(receiver);
+            evaluateArguments(environment, frame, method.firstParameter());
+            if (tailCall) return new TailCall(method, frame);
+            try {
+                return method.call(interpreter, frame);
+            } catch (StackOverflowError error) {
+                throw stackOverflow();
+            }
+        }
+
+        // Lox calls nest on the Java stack; running out of it is reported
+        // as a Lox error at the innermost call, as Interpreter does.
+        RuntimeError stackOverflow() {
+            return new RuntimeError(paren, "Stack overflow.");
+        }
+
+        void checkArity(LoxCallable function) {
+            if (arguments.length != function.arity()) {
+                throw new RuntimeError(paren,
+                        "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == child) {
+                    arguments[i] = (ExprNode) replacement;
+                    return;
+                }
+            }
+            super.replaceChild(child, replacement);
+        }
+    }
+
+    abstract static class CalleeCall extends CallBase {
+        ExprNode callee;
+
+        CalleeCall(Interpreter interpreter, Token paren, ExprNode callee,
+                   ExprNode[] arguments, boolean tailCall) {
+            super(interpreter, paren, arguments, tailCall);
+            this.callee = adopt(callee);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child == callee) {
+                callee = (ExprNode) replacement;
+            } else {
+                super.replaceChild(child, replacement);
+            }
+        }
+    }
+
+    // A call site before its first execution. If the callee is a Lox
+    // function of the right arity, the site becomes a DirectCall guarded on
+    // that function's declaration; anything else makes it generic.
+    static class UninitializedCall extends CalleeCall {
+        UninitializedCall(Interpreter interpreter, Token paren, ExprNode callee,
+                          ExprNode[] arguments, boolean tailCall) {
+            super(interpreter, paren, callee, arguments, tailCall);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+
+            if (replaced) {
+                // Specialized already by a nested execution.
+            } else if (function instanceof LoxFunction
+                    && ((LoxFunction) function).arity() == arguments.length) {
+                replace(new DirectCall(interpreter, paren, callee, arguments, tailCall,
+                        ((LoxFunction) function).declaration));
+            } else {
+                replace(new GenericCall(interpreter, paren, callee, arguments, tailCall));
+            }
+            return call(function, environment);
+        }
+    }
+
+    static class DirectCall extends CalleeCall {
+        private final Stmt.Function declaration;
+
+        DirectCall(Interpreter interpreter, Token paren, ExprNode callee,
+                   ExprNode[] arguments, boolean tailCall, Stmt.Function declaration) {
+            super(interpreter, paren, callee, arguments, tailCall);
+            this.declaration = declaration;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+            if (function instanceof LoxFunction
+                    && ((LoxFunction) function).declaration == declaration) {
+                return call((LoxFunction) function, environment);
+            }
+            if (!replaced) {
+                replace(new GenericCall(interpreter, paren, callee, arguments, tailCall));
+            }
+            return call(function, environment);
+        }
+    }
+
+    static class GenericCall extends CalleeCall {
+        GenericCall(Interpreter interpreter, Token paren, ExprNode callee,
+                    ExprNode[] arguments, boolean tailCall) {
+            super(interpreter, paren, callee, arguments, tailCall);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+            return call(function, environment);
+        }
+    }
+
+    // object.name(...): the method gets the receiver directly, as in
+    // Interpreter.invokeMethod().
+    static class Invoke extends CallBase {
+        private ExprNode object;
+        private final Token name;
+        private final PropertyCache cache = new PropertyCache();
+
+        Invoke(Interpreter interpreter, Token paren, ExprNode object, Token name,
+               ExprNode[] arguments, boolean tailCall) {
+            super(interpreter, paren, arguments, tailCall);
+            this.object = adopt(object);
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = object.execute(environment);
+            if (!(value instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+
+            LoxInstance instance = (LoxInstance) value;
+            LoxFunction method = cache.findMethod(instance, name);
+            if (method == null) {
+                Object callee = cache.get(instance, name);
+                return call(callee, environment);
+            }
+            return callMethod(method, instance, environment);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child == object) {
+                object = (ExprNode) replacement;
+            } else {
+                super.replaceChild(child, replacement);
+            }
+        }
+    }
+
+    static class SuperInvoke extends CallBase {
+        private final int superclassIndex;
+        private final ExprNode receiver;
+        private final Token method;
+
+        SuperInvoke(Interpreter interpreter, Token paren, int superclassIndex,
+                    ExprNode receiver, Token method, ExprNode[] arguments, boolean tailCall) {
+            super(interpreter, paren, arguments, tailCall);
+            this.superclassIndex = superclassIndex;
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            LoxClass superclass = (LoxClass) environment.upvalues[superclassIndex].value;
+            LoxInstance object = (LoxInstance) receiver.execute(environment);
+            LoxFunction function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method,
+                        "Undefined property '" + method.lexeme + "'.");
+            }
+
+            return callMethod(function, object, environment);
+        }
+    }
+
+    static class Get extends ExprNode {
+        private ExprNode object;
+        private final Token name;
+        private final PropertyCache cache = new PropertyCache();
+
+        Get(ExprNode object, Token name) {
+            this.object = adopt(object);
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = object.execute(environment);
+            if (value instanceof LoxInstance) {
+                return cache.get((LoxInstance) value, name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child != object) super.replaceChild(child, replacement);
+            object = (ExprNode) replacement;
+        }
+    }
+
+    static class Set extends ExprNode {
+        private ExprNode object;
+        private final Token name;
+        private ExprNode value;
+        private final PropertyCache cache = new PropertyCache();
+
+        Set(ExprNode object, Token name, ExprNode value) {
+            this.object = adopt(object);
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object target = object.execute(environment);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.execute(environment);
+            cache.set((LoxInstance) target, name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child == object) {
+                object = (ExprNode) replacement;
+            } else if (child == value) {
+                value = (ExprNode) replacement;
+            } else {
+                super.replaceChild(child, replacement);
+            }
+        }
+    }
+
+    // 'super' is always an upvalue of the method, held by the frame its
+    // class created; the receiver is read like any other variable.
+    static class Super extends ExprNode {
+        private final int superclassIndex;
+        private final ExprNode receiver;
+        private final Token method;
+
+        Super(int superclassIndex, ExprNode receiver, Token method) {
+            this.superclassIndex = superclassIndex;
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            LoxClass superclass = (LoxClass) environment.upvalues[superclassIndex].value;
+            LoxInstance object = (LoxInstance) receiver.execute(environment);
+            LoxFunction function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method,
+                        "Undefined property '" + method.lexeme + "'.");
+            }
+            return function.bind(object);
+        }
+    }
+}
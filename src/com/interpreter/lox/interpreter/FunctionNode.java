@@ -0,0 +1,26 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.parser.Stmt;
+
+// The body of a function declaration as a node tree. Every closure created
+// from the declaration shares it, so the specializations its nodes make
+// are kept across calls. The tree is built on the first call; functions
+// that never run are never translated.
+class FunctionNode extends Node {
+    private final Stmt.Function declaration;
+    private final NodeBuilder builder;
+    private StmtNode[] body;
+
+    FunctionNode(Stmt.Function declaration, NodeBuilder builder) {
+        this.declaration = declaration;
+        this.builder = builder;
+    }
+
+    // Runs the body in a frame that already holds the receiver and
+    // arguments, and returns the function's result.
+    Object execute(Environment frame) {
+        if (body == null) body = builder.build(declaration.body);
+        Object result = StmtNode.executeAll(body, frame);
+        return result == StmtNode.NORMAL ? null : result;
+    }
+}
@@ -0,0 +1,39 @@
+package com.interpreter.lox.interpreter;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Execution counts for one function declaration, shared by every closure
+// created from it. The JIT uses them to decide when the function is hot,
+// and the argument types to decide what to speculate on.
+class FunctionProfile {
+    private static final byte NUMBER = 1;
+    private static final byte OTHER = 2;
+
+    int calls = 0;
+    int backEdges = 0;
+    boolean queued = false;
+    int deoptimizations = 0;
+    // Published by the JIT thread once the compiled class is loaded.
+    volatile CompiledFunction compiled;
+    // What each parameter has been seen to hold, as NUMBER and OTHER bits.
+    private byte[] argumentTypes;
+
+    // Records the arguments of a call, held in the frame from slot first.
+    void recordArguments(Environment frame, int first, int count) {
+        if (argumentTypes == null) argumentTypes = new byte[count];
+        for (int i = 0; i < argumentTypes.length; i++) {
+            argumentTypes[i] |= frame.get(first + i) instanceof Double ? NUMBER : OTHER;
+        }
+    }
+
+    // The parameters that have only ever held numbers.
+    Set<Integer> numberParameters() {
+        Set<Integer> parameters = new HashSet<>();
+        if (argumentTypes == null) return parameters;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (argumentTypes[i] == NUMBER) parameters.add(i);
+        }
+        return parameters;
+    }
+}
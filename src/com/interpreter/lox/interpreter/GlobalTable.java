@@ -0,0 +1,68 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.util.RuntimeError;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Global variables, stored by index. A name is hashed once, when it is
+// first given a slot; every variable site that refers to the global then
+// caches that slot and reads the value array directly.
+class GlobalTable {
+    // Marks slots handed out for names that have not been defined yet, so
+    // that a site can cache its slot before the definition runs.
+    private static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private Object[] values = new Object[16];
+
+    int slotFor(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            if (slot == values.length) {
+                values = Arrays.copyOf(values, slot * 2);
+            }
+            values[slot] = UNDEFINED;
+            slots.put(name, slot);
+        }
+        return slot;
+    }
+
+    // The names that have slots, in slot order.
+    String[] names() {
+        String[] names = new String[slots.size()];
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        return names;
+    }
+
+    void define(String name, Object value) {
+        int slot = slotFor(name);
+        values[slot] = value;
+    }
+
+    // The value in a slot without the check for definition, which the
+    // JIT only inspects.
+    Object peek(int slot) {
+        return values[slot];
+    }
+
+    Object get(int slot, Token name) {
+        Object value = values[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        return value;
+    }
+
+    void assign(int slot, Token name, Object value) {
+        if (values[slot] == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        values[slot] = value;
+    }
+}
@@ -7,17 +7,33 @@ import com.interpreter.lox.parser.Expr;
 import com.interpreter.lox.util.RuntimeError;
 import com.interpreter.lox.parser.Stmt;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    public final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final GlobalTable globals = new GlobalTable();
+    // The frame of the running function, or of the top-level block being
+    // run. Top-level statements outside any block run in this empty frame,
+    // since their variables are globals; a top-level block that declares
+    // variables gets a frame of its own for them.
+    private Environment environment = new Environment(0, null);
+    // Completion signal for 'return': set by visitReturnStmt, it stops the
+    // statement loops of every enclosing block and loop in the function,
+    // and is cleared by the call that consumes the value.
+    private boolean returning = false;
+    private Object returnValue = null;
     public static long endTime;
+    // Lox calls currently nested, and how many may be; see LoxFunction.call.
+    // Lox sets the limit to the depth the VM allows, or to --max-depth.
+    int callDepth = 0;
+    int maxDepth = Integer.MAX_VALUE;
+    // Null unless the JIT tier is enabled.
+    JitCompiler jit = null;
+    // Profile of the function whose body is running, for counting loop
+    // back-edges; null in top-level code or when the JIT is off.
+    FunctionProfile activeProfile = null;
 
 
     public Interpreter() {
@@ -28,7 +44,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double) System.currentTimeMillis() / 1000.0;
             }
 
@@ -39,25 +60,61 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
+    public void enableJit() {
+        jit = new JitCompiler(globals);
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
     public void interpret(List<Stmt> statements) {
         try {
             for(Stmt stmt: statements) {
                 execute(stmt);
             }
         } catch (RuntimeError error) {
+            returning = false;
+            returnValue = null;
+            boxedResult = UNBOXED;
+            activeProfile = null;
             Lox.runtimeError(error);
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Runs the program on the self-specializing node tree instead of the
+    // visitor. Both share the globals and the frame layout.
+    public void interpretNodes(List<Stmt> statements) {
+        try {
+            StmtNode[] program = new NodeBuilder(this).build(statements);
+            for (StmtNode node : program) {
+                node.execute(environment);
+            }
+        } catch (RuntimeError error) {
+            activeProfile = null;
+            Lox.runtimeError(error);
+        }
+    }
+
+    // Runs a program compiled ahead of time. Its code refers to globals by
+    // the slots they had when it was compiled, so the names are given their
+    // slots in that order before anything runs.
+    void interpretCompiled(CompiledFunction program, String[] globalNames) {
+        for (String name : globalNames) {
+            globals.slotFor(name);
+        }
+        try {
+            program.call(this, environment);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private void execute(Stmt stmt) {
+        stmt.accept(this);
     }
 
-    private String stringify(Object value) {
+    static String stringify(Object value) {
         if(value == null) return "nil";
 
         if(value instanceof Double) {
@@ -74,11 +131,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth != -1) {
+            assign(expr.depth, expr.slot, expr.cell, value);
         } else {
-            globals.assign(expr.name, value);
+            if (expr.slot == -1) expr.slot = globals.slotFor(expr.name.lexeme);
+            globals.assign(expr.slot, expr.name, value);
         }
 //       environment.assign(expr.name, value);
         return value;
@@ -86,21 +143,130 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH: {
+                double value = evaluateDouble(expr);
+                Object boxed = takeBoxed();
+                if (boxed != UNBOXED) return boxed;
+                return value;
+            }
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return compare(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binaryOp(expr.operator, left, right);
+    }
+
+    // Numeric fast path. Arithmetic subtrees are evaluated as unboxed
+    // doubles, so only the final result of an expression like a * b + c is
+    // boxed. When a subexpression turns out not to be a number,
+    // evaluateDouble() returns NaN and leaves the value it did produce in
+    // boxedResult; the caller takes it with takeBoxed() and finishes the
+    // operation on the generic path.
+    private static final Object UNBOXED = new Object();
+    private Object boxedResult = UNBOXED;
+
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case PLUS:
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return arithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Variable) {
+            return unbox(lookUpVariable((Expr.Variable) expr));
+        } else if (expr instanceof Expr.Literal) {
+            return unbox(((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type == TokenType.MINUS) {
+                double right = evaluateDouble(unary.right);
+                if (boxedResult != UNBOXED) {
+                    checkNumberOperand(unary.operator, takeBoxed());
+                }
+                return -right;
+            }
+        }
+        return unbox(evaluate(expr));
+    }
+
+    private double unbox(Object value) {
+        if (value instanceof Double) return (double) value;
+        boxedResult = value;
+        return Double.NaN;
+    }
+
+    private Object takeBoxed() {
+        Object value = boxedResult;
+        boxedResult = UNBOXED;
+        return value;
+    }
+
+    private double arithmetic(Expr.Binary expr) {
+        double left = evaluateDouble(expr.left);
+        Object leftBoxed = takeBoxed();
+        double right = evaluateDouble(expr.right);
+        Object rightBoxed = takeBoxed();
 
+        if (leftBoxed == UNBOXED && rightBoxed == UNBOXED) {
+            switch (expr.operator.type) {
+                case PLUS: return left + right;
+                case MINUS: return left - right;
+                case STAR: return left * right;
+                default: return left / right;
+            }
+        }
+
+        // Not both numbers: string concatenation and the type errors are
+        // handled the generic way.
+        Object leftValue = leftBoxed == UNBOXED ? (Object) left : leftBoxed;
+        Object rightValue = rightBoxed == UNBOXED ? (Object) right : rightBoxed;
+        return unbox(binaryOp(expr.operator, leftValue, rightValue));
+    }
+
+    private boolean compare(Expr.Binary expr) {
+        double left = evaluateDouble(expr.left);
+        Object leftBoxed = takeBoxed();
+        double right = evaluateDouble(expr.right);
+        Object rightBoxed = takeBoxed();
+
+        if (leftBoxed != UNBOXED || rightBoxed != UNBOXED) {
+            throw new RuntimeError(expr.operator, "Operands must be numbers");
+        }
         switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    static Object binaryOp(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left,right);
+                checkNumberOperands(operator, left,right);
                 return (double) left <= (double) right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -114,15 +280,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if(left instanceof String && right instanceof Double) {
                     return left + stringify(right);
                 }
-                throw new RuntimeError(expr.operator, "Operands must be numbers or strings");
+                throw new RuntimeError(operator, "Operands must be numbers or strings");
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left / (double) right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
         }
 
@@ -131,31 +297,161 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        List<Object> arguments = new ArrayList<>();
+        try {
+            if (expr.callee instanceof Expr.Get) {
+                return invokeMethod(expr, (Expr.Get) expr.callee);
+            }
+            if (expr.callee instanceof Expr.Super) {
+                return invokeSuper(expr, (Expr.Super) expr.callee);
+            }
 
-        for(Expr arg: expr.arguments) {
-            arguments.add(evaluate(arg));
+            Object callee = evaluate(expr.callee);
+            return call(expr, callee);
+        } catch (StackOverflowError error) {
+            // Lox calls nest on the Java stack here; running out of it is a
+            // Lox error at the innermost call, like on the VM.
+            throw new RuntimeError(expr.paren, "Stack overflow.");
         }
+    }
 
+    // Calls object.name(...) by passing the receiver straight into the
+    // method's frame; a bound method is only created when one is read as a
+    // value. The method is looked up through the call site's own cache.
+    private Object invokeMethod(Expr.Call expr, Expr.Get get) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name,
+                    "Only instances have properties.");
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        PropertyCache cache = propertyCache(expr);
+        LoxFunction method = cache.findMethod(instance, get.name);
+        if (method == null) {
+            // The property is a field, which may hold any callable.
+            Object callee = cache.get(instance, get.name);
+            return call(expr, callee);
+        }
+        return callMethod(expr, method, instance);
+    }
+
+    private Object invokeSuper(Expr.Call expr, Expr.Super callee) {
+        LoxClass superclass = (LoxClass)environment.upvalues[callee.slot].value;
+        LoxInstance object = (LoxInstance)read(
+                callee.thisDepth, callee.thisSlot, callee.thisCell);
+        LoxFunction method = superclass.findMethod(callee.method.lexeme);
+        if (method == null) {
+            throw new RuntimeError(callee.method,
+                    "Undefined property '" + callee.method.lexeme + "'.");
+        }
+
+        return callMethod(expr, method, object);
+    }
+
+    private Object callMethod(Expr.Call expr, LoxFunction method, LoxInstance receiver) {
+        if (expr.arguments.size() != method.arity()) {
+            evaluateArguments(expr);
+            throw arityError(expr, method);
+        }
+        Environment frame = method.frame(receiver);
+        evaluateArguments(expr, frame, method.firstParameter());
+        if (expr.tailCall) return new TailCall(method, frame);
+        return method.call(this, frame);
+    }
+
+    // Arguments go straight into the callee's frame when it is a Lox
+    // function, and are passed one by one to callables taking up to four.
+    // Anything else, including a call that is about to fail, evaluates them
+    // all before checking the callee, as calls always have.
+    private Object call(Expr.Call expr, Object callee) {
+        int count = expr.arguments.size();
+        if (callee instanceof LoxFunction && ((LoxFunction) callee).arity() == count) {
+            LoxFunction function = (LoxFunction) callee;
+            Environment frame = function.frame();
+            evaluateArguments(expr, frame, function.firstParameter());
+            // Only Lox functions are trampolined; natives and classes
+            // return their value right away.
+            if (expr.tailCall) return new TailCall(function, frame);
+            return function.call(this, frame);
+        }
+        if (callee instanceof LoxCallable && ((LoxCallable) callee).arity() == count
+                && count <= 4) {
+            return callDirect(expr, (LoxCallable) callee);
+        }
+
+        Object[] arguments = evaluateArguments(expr);
         if(!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         }
-
         LoxCallable function = (LoxCallable) callee;
-        if(arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren,
-                    "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        if (arguments.length != function.arity()) throw arityError(expr, function);
+        return function.call(this, arguments);
+    }
+
+    private Object callDirect(Expr.Call expr, LoxCallable function) {
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return function.call0(this);
+            case 1:
+                return function.call1(this, evaluate(arguments.get(0)));
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                return function.call2(this, a, evaluate(arguments.get(1)));
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return function.call3(this, a, b, evaluate(arguments.get(2)));
+            }
+            default: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return function.call4(this, a, b, c, evaluate(arguments.get(3)));
+            }
+        }
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        return arguments;
+    }
+
+    private void evaluateArguments(Expr.Call expr, Environment frame, int first) {
+        List<Expr> arguments = expr.arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.define(first + i, evaluate(arguments.get(i)));
         }
+    }
+
+    private RuntimeError arityError(Expr.Call expr, LoxCallable function) {
+        return new RuntimeError(expr.paren, "Expected " + function.arity()
+                + " arguments but got " + expr.arguments.size() + ".");
+    }
+    private PropertyCache propertyCache(Expr.Call expr) {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return (PropertyCache) expr.cache;
+    }
 
-        return function.call(this,arguments);
+    private PropertyCache propertyCache(Expr.Get expr) {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return (PropertyCache) expr.cache;
+    }
 
+    private PropertyCache propertyCache(Expr.Set expr) {
+        if (expr.cache == null) expr.cache = new PropertyCache();
+        return (PropertyCache) expr.cache;
     }
+
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return propertyCache(expr).get((LoxInstance) object, expr.name);
         }
 
         throw new RuntimeError(expr.name,
@@ -194,16 +490,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        propertyCache(expr).set((LoxInstance) object, expr.name, value);
         return value;
     }
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(
-                distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(
-                distance - 1, "this");
+        LoxClass superclass = (LoxClass)environment.upvalues[expr.slot].value;
+        LoxInstance object = (LoxInstance)read(
+                expr.thisDepth, expr.thisSlot, expr.thisCell);
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
         if (method == null) {
             throw new RuntimeError(expr.method,
@@ -213,19 +507,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return read(expr.depth, expr.slot, expr.cell);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            return evaluateDouble(expr);
+        }
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
         }
 
         return null;
@@ -233,22 +527,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr);
 //        return environment.get(expr.name);
     }
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Expr.Variable expr) {
+        if (expr.depth != -1) {
+            return read(expr.depth, expr.slot, expr.cell);
         } else {
-            return globals.get(name);
+            if (expr.slot == -1) expr.slot = globals.slotFor(expr.name.lexeme);
+            return globals.get(expr.slot, expr.name);
+        }
+    }
+
+    // A local of the running frame, or one of an enclosing function reached
+    // through an upvalue.
+    private Object read(int depth, int slot, boolean cell) {
+        if (depth == 1) return environment.upvalues[slot].value;
+        if (cell) return environment.getCell(slot);
+        return environment.get(slot);
+    }
+
+    private void assign(int depth, int slot, boolean cell, Object value) {
+        if (depth == 1) {
+            environment.upvalues[slot].value = value;
+        } else if (cell) {
+            environment.assignCell(slot, value);
+        } else {
+            environment.define(slot, value);
         }
     }
 
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        // A flattened block keeps its variables in the enclosing frame.
+        if (stmt.flattened) {
+            executeBlock(stmt.statements, environment);
+        } else {
+            executeBlock(stmt.statements,
+                    new Environment(stmt.frameSize, null));
+        }
         return null;
     }
     @Override
@@ -261,24 +579,33 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                         "Superclass must be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
+        define(stmt.slot, stmt.cell, stmt.name, null);
+        // Methods of a subclass close over a frame of their own that holds
+        // 'super'.
+        Environment scope = environment;
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            scope = new Environment(1, environment.capture(stmt.captures));
+            scope.define(0, new Upvalue(superclass));
         }
+        // Start from the superclass's flattened table so that overriding
+        // methods replace inherited ones and no lookup walks the chain.
         Map<String, LoxFunction> methods = new HashMap<>();
+        if (superclass != null) {
+            methods.putAll(((LoxClass) superclass).methods);
+        }
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment,
-                    method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, scope.capture(method.captures),
+                    method.name.lexeme.equals("init"), true, null);
             methods.put(method.name.lexeme, function);
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme,
                 (LoxClass)superclass, methods);
-        if (superclass != null) {
-            environment = environment.enclosing;
+        if (stmt.slot != -1) {
+            assign(0, stmt.slot, stmt.cell, klass);
+        } else {
+            globals.define(stmt.name.lexeme, klass);
         }
-        environment.assign(stmt.name, klass);
         return null;
     }
 
@@ -290,9 +617,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment,
+        // A captured function gets its cell first, so that it can capture
+        // itself and recurse.
+        if (stmt.cell) environment.define(stmt.slot, new Upvalue(null));
+        LoxFunction function = new LoxFunction(stmt, environment.capture(stmt.captures),
                 false);
-        environment.define(stmt.name.lexeme, function);
+        if (stmt.cell) {
+            environment.assignCell(stmt.slot, function);
+        } else {
+            define(stmt.slot, false, stmt.name, function);
+        }
         return null;
     }
 
@@ -323,7 +657,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.value);
         }
 
-        throw new Return(value);
+        returnValue = value;
+        returning = true;
+        return null;
     }
 
     @Override
@@ -333,14 +669,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        define(stmt.slot, stmt.cell, stmt.name, value);
         return null;
     }
 
+    private void define(int slot, boolean cell, Token name, Object value) {
+        if (slot != -1) {
+            environment.define(slot, cell ? new Upvalue(value) : value);
+        } else {
+            globals.define(name.lexeme, value);
+        }
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        FunctionProfile profile = activeProfile;
+        LoopProfile loop = jit != null ? jit.profile(stmt) : null;
         while (isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+            if (returning) break;
+            if (profile != null) profile.backEdges++;
+            if (loop != null) {
+                CompiledLoop compiled = jit.backEdge(stmt, loop, environment);
+                if (compiled != null) {
+                    Object result = compiled.run(this, environment);
+                    if (result != CompiledLoop.DEOPTIMIZE) {
+                        if (result != StmtNode.NORMAL) {
+                            returnValue = result;
+                            returning = true;
+                        }
+                        break;
+                    }
+                    jit.deoptimize(loop);
+                }
+            }
         }
 
         return null;
@@ -353,29 +715,39 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
             for(Stmt stmt: stmts) {
                 execute(stmt);
+                if (returning) break;
             }
         }finally {
             this.environment = previous;
         }
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    // Hands the value of the pending 'return' (nil if the body ran off its
+    // end) to the call that is finishing, and clears the signal.
+    Object completeCall() {
+        Object value = returnValue;
+        returning = false;
+        returnValue = null;
+        return value;
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
         if(operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if(left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers");
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if(left == null && right == null) return  true;
         if(left == null) return  false;
         return left.equals(right);
     }
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return  false;
         if(object instanceof Boolean) return (boolean) object;
         return true;
@@ -0,0 +1,1113 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.lexer.TokenType;
+import com.interpreter.lox.parser.Expr;
+import com.interpreter.lox.parser.Stmt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+// Translates the body of one Lox function into the Java source of a
+// CompiledFunction. Expressions are lowered into straight-line statements
+// over temporaries, typed double or boolean wherever the operator
+// guarantees it, so numeric code stays unboxed. The locals of the function
+// become Java variables, captured ones holding their Upvalue, and the
+// variables of enclosing functions are read through the upvalues the
+// closure was given. The JIT only translates functions without nested
+// functions or classes.
+//
+// The JIT generates the body as a method of its own, taking the upvalues
+// and the arguments, the speculated ones as doubles. Calls from compiled
+// code to a function the global they name holds at compile time link
+// straight to such a method, generated for the callee in the same class:
+// the call site checks that the callee still has that declaration and
+// that the speculated arguments are numbers, and otherwise calls through
+// the interpreter as usual.
+//
+// Ahead-of-time compilation translates whole programs. There the constants
+// become static initializers, globals are reached through the interpreter,
+// and nested functions and classes are created with the upvalues they
+// capture. A body too large for one Java method is generated again split
+// into parts, each a method of its own that runs a run of the body's
+// statements; the variables the body declares then live in the frame, so
+// that every part can reach them, and the constants are set up by several
+// methods too.
+class JavaGenerator implements Expr.Visitor<JavaGenerator.Value>, Stmt.Visitor<Boolean> {
+    private enum Type {
+        OBJECT("Object"),
+        DOUBLE("double"),
+        BOOLEAN("boolean");
+
+        final String java;
+
+        Type(String java) {
+            this.java = java;
+        }
+    }
+
+    // A lowered expression: a temporary or a literal, so it can be used
+    // any number of times without re-evaluating anything.
+    static class Value {
+        final String code;
+        final Type type;
+
+        Value(String code, Type type) {
+            this.code = code;
+            this.type = type;
+        }
+    }
+
+    // Names the class generated for a function declared in the code being
+    // translated. Only set when compiling ahead of time.
+    interface Functions {
+        String classFor(Stmt.Function function, boolean isMethod);
+    }
+
+    // Lines of generated code after which a body is split up, well under
+    // the 64 KB of bytecode a Java method may have.
+    static final int METHOD_LINES = 1000;
+    // Functions whose bodies one JIT-compiled class may hold.
+    static final int MAX_LINKED = 8;
+
+    private final GlobalTable globals;
+    private final Functions functions;
+    // Whether bodies are split into parts.
+    private final boolean split;
+    // The JIT's speculation: the slots speculated to hold numbers in the
+    // frame of each function or loop the code runs in. Null when compiling
+    // ahead of time.
+    private final Function<Object, Set<Integer>> speculation;
+    // The function or loop whose frame the code being generated runs in,
+    // and the slots of it that hold numbers.
+    private Object owner;
+    private Set<Integer> numbers = Set.of();
+    // Speculated slots the code may assign something else, by owner.
+    private final Map<Object, Set<Integer>> failedSpeculations = new IdentityHashMap<>();
+    // In a loop, the global slots speculated to hold numbers, which live in
+    // Java variables while it runs.
+    private Set<Integer> numberGlobals = Set.of();
+    // What a loop uses from outside it: the slots of the frame it runs in,
+    // the globals, by slot, with a token naming each, and whether it makes
+    // any calls, which could change globals behind its back.
+    private final Set<Integer> frameSlots = new HashSet<>();
+    private final Map<Integer, Token> globalSlots = new LinkedHashMap<>();
+    private boolean makesCalls = false;
+    // Functions whose bodies are methods of the class, numbered in order,
+    // and those methods.
+    private final Map<Stmt.Function, Integer> linked = new IdentityHashMap<>();
+    private final List<StringBuilder> methods = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private StringBuilder body = new StringBuilder();
+    private final List<StringBuilder> parts = new ArrayList<>();
+    private int lines = 0;
+    // Set while generating the statements of a split body itself, whose
+    // variables are declared in the frame.
+    private boolean spill = false;
+    // Slots of the frame whose variables the generated code declared and
+    // keeps in Java variables. A loop compiled for on-stack replacement
+    // reaches the others in the frame of the interpreted loop.
+    private Set<Integer> locals = new HashSet<>();
+    private int tempCount = 0;
+    private int indent = 2;
+    // Whether the code is a loop, run by a CompiledLoop.
+    private boolean loop = false;
+
+    JavaGenerator(GlobalTable globals, Function<Object, Set<Integer>> speculation) {
+        this(globals, null, speculation, false);
+    }
+
+    JavaGenerator(GlobalTable globals, Functions functions, boolean split) {
+        this(globals, functions, null, split);
+    }
+
+    private JavaGenerator(GlobalTable globals, Functions functions,
+                          Function<Object, Set<Integer>> speculation, boolean split) {
+        this.globals = globals;
+        this.functions = functions;
+        this.speculation = speculation;
+        this.split = split;
+        if (functions == null) constants.add(globals);
+    }
+
+    static boolean canCompile(Stmt.Function function) {
+        return !declaresFunctions(function.body);
+    }
+
+    static boolean canCompile(Stmt.While loop) {
+        return !declaresFunctions(loop);
+    }
+
+    private static boolean declaresFunctions(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (declaresFunctions(statement)) return true;
+        }
+        return false;
+    }
+
+    private static boolean declaresFunctions(Stmt statement) {
+        if (statement instanceof Stmt.Function || statement instanceof Stmt.Class) {
+            return true;
+        }
+        if (statement instanceof Stmt.Block) {
+            return declaresFunctions(((Stmt.Block) statement).statements);
+        }
+        if (statement instanceof Stmt.If) {
+            Stmt.If stmt = (Stmt.If) statement;
+            return declaresFunctions(stmt.thenBranch)
+                    || (stmt.elseBranch != null && declaresFunctions(stmt.elseBranch));
+        }
+        if (statement instanceof Stmt.While) {
+            return declaresFunctions(((Stmt.While) statement).body);
+        }
+        return false;
+    }
+
+    // Speculated slots the generated code cannot keep as doubles, by the
+    // function or loop they belong to; it has to be generated again
+    // without them.
+    Map<Object, Set<Integer>> failedSpeculations() {
+        return failedSpeculations;
+    }
+
+    private void failSpeculation(int slot) {
+        failSpeculation(owner, slot);
+    }
+
+    private void failSpeculation(Object owner, int slot) {
+        failedSpeculations.computeIfAbsent(owner, key -> new HashSet<>()).add(slot);
+    }
+
+    // The slots of the frame a loop reads or writes outside the variables
+    // it declares.
+    Set<Integer> frameSlots() {
+        return frameSlots;
+    }
+
+    // The global slots a loop reads or writes.
+    Set<Integer> globalSlots() {
+        return globalSlots.keySet();
+    }
+
+    boolean makesCalls() {
+        return makesCalls;
+    }
+
+    // Whether the generated method is too large for javac, so the body has
+    // to be generated again split up.
+    boolean tooLarge() {
+        return !split && (lines > METHOD_LINES || constants.size() > METHOD_LINES);
+    }
+
+    // The values the generated constructor expects, in order.
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    String generate(String className, Stmt.Function function, boolean isMethod) {
+        if (speculation != null) {
+            // The arguments are checked against the speculation before the
+            // body runs.
+            Set<Integer> numbers = parameterNumbers(function);
+            List<String> arguments = new ArrayList<>();
+            int parameters = (isMethod ? 1 : 0) + function.params.size();
+            for (int slot = 0; slot < parameters; slot++) {
+                if (numbers.contains(slot)) {
+                    line("if (!(frame.get(" + slot + ") instanceof Double)) return DEOPTIMIZE;");
+                    arguments.add("(double) frame.get(" + slot + ")");
+                } else {
+                    arguments.add("frame.get(" + slot + ")");
+                }
+            }
+            int index = link(function, isMethod);
+            line("return fn" + index + "(interpreter, upvalues" + list(arguments) + ");");
+            return source(className);
+        }
+
+        Set<Integer> cells = new HashSet<>();
+        for (int slot : function.cellParameters) cells.add(slot);
+        spill = split;
+        int first = 0;
+        if (isMethod) {
+            parameter(0, cells.contains(0));
+            first = 1;
+        }
+        for (int i = 0; i < function.params.size(); i++) {
+            parameter(first + i, cells.contains(first + i));
+        }
+        if (bodyStatements(function.body)) line("return null;");
+        return source(className);
+    }
+
+    // The parameters the JIT speculates hold numbers. Captured ones live in
+    // cells, so they are never kept as doubles.
+    private Set<Integer> parameterNumbers(Stmt.Function function) {
+        Set<Integer> numbers = speculation.apply(function);
+        for (int slot : function.cellParameters) numbers.remove(slot);
+        return numbers;
+    }
+
+    // Generates the body of a function as a method of the class, once, and
+    // returns its number. The method fn<n> takes the upvalues and the
+    // arguments; link<n> is the entry point for calls linked to it, which
+    // counts the call towards the depth limit and makes the tail calls the
+    // body returns.
+    private int link(Stmt.Function function, boolean isMethod) {
+        Integer index = linked.get(function);
+        if (index != null) return index;
+        index = linked.size();
+        linked.put(function, index);
+
+        StringBuilder enclosingBody = body;
+        Set<Integer> enclosingLocals = locals;
+        Object enclosingOwner = owner;
+        Set<Integer> enclosingNumbers = numbers;
+        Set<Integer> enclosingGlobals = numberGlobals;
+        int enclosingIndent = indent;
+        body = new StringBuilder();
+        locals = new HashSet<>();
+        owner = function;
+        numbers = parameterNumbers(function);
+        numberGlobals = Set.of();
+        indent = 2;
+
+        Set<Integer> cells = new HashSet<>();
+        for (int slot : function.cellParameters) cells.add(slot);
+        List<String> parameters = new ArrayList<>();
+        List<String> arguments = new ArrayList<>();
+        int count = (isMethod ? 1 : 0) + function.params.size();
+        for (int slot = 0; slot < count; slot++) {
+            if (numbers.contains(slot)) {
+                parameters.add("double v" + slot);
+                arguments.add("v" + slot);
+                locals.add(slot);
+            } else if (cells.contains(slot)) {
+                parameters.add("Object p" + slot);
+                arguments.add("p" + slot);
+                declare(slot, true, "p" + slot);
+            } else {
+                parameters.add("Object v" + slot);
+                arguments.add("v" + slot);
+                locals.add(slot);
+            }
+        }
+        if (statements(function.body)) line("return null;");
+
+        StringBuilder method = new StringBuilder();
+        method.append("    private Object fn").append(index)
+                .append("(Interpreter interpreter, Upvalue[] upvalues")
+                .append(list(parameters)).append(") {\n")
+                .append(body).append("    }\n\n");
+        method.append("    private Object link").append(index)
+                .append("(Interpreter interpreter, Token paren, Upvalue[] upvalues")
+                .append(list(parameters)).append(") {\n")
+                .append("        JitRuntime.enter(interpreter, paren);\n")
+                .append("        try {\n")
+                .append("            return LoxFunction.finish(interpreter, fn").append(index)
+                .append("(interpreter, upvalues").append(list(arguments)).append("));\n")
+                .append("        } catch (StackOverflowError error) {\n")
+                .append("            throw JitRuntime.stackOverflow(paren);\n")
+                .append("        } finally {\n")
+                .append("            JitRuntime.leave(interpreter);\n")
+                .append("        }\n")
+                .append("    }\n");
+        methods.add(method);
+
+        body = enclosingBody;
+        locals = enclosingLocals;
+        owner = enclosingOwner;
+        numbers = enclosingNumbers;
+        numberGlobals = enclosingGlobals;
+        indent = enclosingIndent;
+        return index;
+    }
+
+    // Items to follow the leading arguments of a call or declaration.
+    private static String list(List<String> items) {
+        StringBuilder list = new StringBuilder();
+        for (String item : items) list.append(", ").append(item);
+        return list.toString();
+    }
+
+    // The top-level code of a program, run with no upvalues and no
+    // receiver.
+    String generateProgram(String className, List<Stmt> statements) {
+        if (bodyStatements(statements)) line("return null;");
+        return source(className);
+    }
+
+    // Makes a parameter, which the caller stored in the frame, a variable
+    // of the body. A split body reads it from the frame, unless it needs a
+    // cell.
+    private void parameter(int slot, boolean cell) {
+        if (spill && !cell) return;
+        declare(slot, cell, "frame.get(" + slot + ")");
+    }
+
+    // Generates the statements of a body and reports whether control can
+    // reach the end of them. A split body is cut into parts of about
+    // METHOD_LINES lines, which return StmtNode.NORMAL when they complete
+    // and the value of a 'return' otherwise.
+    private boolean bodyStatements(List<Stmt> statements) {
+        if (!split) return statements(statements);
+
+        StringBuilder main = body;
+        boolean completes = true;
+        int next = 0;
+        while (completes && next < statements.size()) {
+            String part = "part" + parts.size();
+            body = new StringBuilder();
+            parts.add(body);
+            int start = lines;
+            while (completes && next < statements.size() && lines - start < METHOD_LINES) {
+                completes = statements.get(next++).accept(this);
+            }
+            if (completes) line("return StmtNode.NORMAL;");
+
+            body = main;
+            if (completes) {
+                Value result = temp(Type.OBJECT, part + "(interpreter, frame)");
+                line("if (" + result.code + " != StmtNode.NORMAL) return " + result.code + ";");
+            } else {
+                line("return " + part + "(interpreter, frame);");
+            }
+        }
+        return completes;
+    }
+
+    // A loop taken over from the interpreter in the middle of running, in
+    // the frame it runs in. Returns StmtNode.NORMAL when the loop ends, or
+    // the value of a 'return' in it. The variables from outside the loop
+    // speculated to hold numbers, slots of the frame (by the loop) and
+    // globals (by the GlobalTable), are checked on entry and kept in
+    // doubles while it runs; they are written back however it is left.
+    String generateLoop(String className, Stmt.While loop) {
+        this.loop = true;
+        owner = loop;
+        numbers = speculation.apply(loop);
+        numberGlobals = speculation.apply(globals);
+        for (int slot : numbers) {
+            line("if (!(frame.get(" + slot + ") instanceof Double)) return DEOPTIMIZE;");
+        }
+        for (int slot : numberGlobals) {
+            line("if (!(" + globalTable() + ".peek(" + slot + ") instanceof Double)) return DEOPTIMIZE;");
+        }
+        for (int slot : numbers) {
+            locals.add(slot);
+            line("double v" + slot + " = (double) frame.get(" + slot + ");");
+        }
+        for (int slot : numberGlobals) {
+            line("double g" + slot + " = (double) " + globalTable() + ".peek(" + slot + ");");
+        }
+
+        boolean speculates = !numbers.isEmpty() || !numberGlobals.isEmpty();
+        if (speculates) {
+            line("try {");
+            indent++;
+        }
+        loop.accept(this);
+        if (speculates) {
+            indent--;
+            line("} finally {");
+            for (int slot : numbers) {
+                line("    frame.define(" + slot + ", Double.valueOf(v" + slot + "));");
+            }
+            for (int slot : numberGlobals) {
+                line("    " + globalTable() + ".assign(" + slot + ", "
+                        + constant(globalSlots.get(slot)) + ", Double.valueOf(g" + slot + "));");
+            }
+            line("}");
+        }
+        line("return StmtNode.NORMAL;");
+        return source(className);
+    }
+
+    private String source(String className) {
+        StringBuilder source = new StringBuilder();
+        source.append("package com.interpreter.lox.interpreter;\n\n");
+        source.append("import com.interpreter.lox.lexer.Token;\n");
+        source.append("import com.interpreter.lox.lexer.TokenType;\n");
+        source.append("import com.interpreter.lox.util.RuntimeError;\n");
+        source.append("import java.util.HashMap;\n");
+        source.append("import java.util.List;\n");
+        source.append("import java.util.Map;\n\n");
+        source.append("final class ").append(className).append(" implements ")
+                .append(loop ? "CompiledLoop" : "CompiledFunction").append(" {\n");
+        if (functions != null && split) {
+            // Static final fields could only be set in one initializer.
+            for (int i = 0; i < constants.size(); i++) {
+                source.append("    private static ").append(constantType(constants.get(i)))
+                        .append(" k").append(i).append(";\n");
+            }
+            source.append("\n    static {\n");
+            for (int i = 0; i < constants.size(); i += METHOD_LINES) {
+                source.append("        constants").append(i / METHOD_LINES).append("();\n");
+            }
+            source.append("    }\n\n");
+            for (int i = 0; i < constants.size(); i += METHOD_LINES) {
+                source.append("    private static void constants").append(i / METHOD_LINES)
+                        .append("() {\n");
+                for (int j = i; j < Math.min(i + METHOD_LINES, constants.size()); j++) {
+                    source.append("        k").append(j).append(" = ")
+                            .append(initializer(constants.get(j))).append(";\n");
+                }
+                source.append("    }\n\n");
+            }
+        } else if (functions != null) {
+            for (int i = 0; i < constants.size(); i++) {
+                source.append("    private static final ").append(constantType(constants.get(i)))
+                        .append(" k").append(i).append(" = ")
+                        .append(initializer(constants.get(i))).append(";\n");
+            }
+            source.append("\n");
+        } else {
+            for (int i = 0; i < constants.size(); i++) {
+                source.append("    private final ").append(constantType(constants.get(i)))
+                        .append(" k").append(i).append(";\n");
+            }
+            source.append("\n    ").append(className).append("(Object[] k) {\n");
+            for (int i = 0; i < constants.size(); i++) {
+                source.append("        k").append(i).append(" = (")
+                        .append(constantType(constants.get(i))).append(") k[").append(i).append("];\n");
+            }
+            source.append("    }\n\n");
+        }
+        source.append("    @Override\n");
+        method(source, "public Object " + (loop ? "run" : "call"), body);
+        for (int i = 0; i < parts.size(); i++) {
+            source.append("\n");
+            method(source, "private Object part" + i, parts.get(i));
+        }
+        for (StringBuilder method : methods) {
+            source.append("\n").append(method);
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private void method(StringBuilder source, String declaration, StringBuilder body) {
+        source.append("    ").append(declaration)
+                .append("(Interpreter interpreter, Environment frame) {\n");
+        source.append("        Upvalue[] upvalues = frame.upvalues;\n");
+        if (functions != null) source.append("        GlobalTable globals = interpreter.globals;\n");
+        source.append(body);
+        source.append("    }\n");
+    }
+
+    private static String constantType(Object constant) {
+        if (constant instanceof Token) return "Token";
+        if (constant instanceof PropertyCache) return "PropertyCache";
+        if (constant instanceof GlobalTable) return "GlobalTable";
+        return "Object";
+    }
+
+    // Java expression that recreates a constant, for static initializers.
+    private static String initializer(Object constant) {
+        if (constant == null) return "null";
+        if (constant instanceof Token) {
+            Token token = (Token) constant;
+            return "new Token(TokenType." + token.type.name() + ", " + literal(token.lexeme)
+                    + ", " + initializer(token.literal) + ", " + token.line + ")";
+        }
+        if (constant instanceof PropertyCache) return "new PropertyCache()";
+        if (constant instanceof TokenType) return "TokenType." + ((TokenType) constant).name();
+        if (constant instanceof Double) {
+            return "Double.longBitsToDouble(" + Double.doubleToRawLongBits((double) constant) + "L)";
+        }
+        if (constant instanceof Boolean) return "Boolean." + (((Boolean) constant) ? "TRUE" : "FALSE");
+        return literal(constant.toString());
+    }
+
+    private static String literal(String text) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < ' ') {
+                // javac expands Unicode escapes before lexing, so an escaped newline
+                // would end the literal early; control characters need ordinary escapes.
+                switch (c) {
+                    case '\n': literal.append("\\n"); break;
+                    case '\r': literal.append("\\r"); break;
+                    case '\t': literal.append("\\t"); break;
+                    case '\b': literal.append("\\b"); break;
+                    case '\f': literal.append("\\f"); break;
+                    default: literal.append(String.format("\\%03o", (int) c));
+                }
+            } else if (c > '~') {
+                literal.append(String.format("\\u%04x", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private String globalTable() {
+        return functions == null ? constant(globals) : "globals";
+    }
+
+    private String constant(Object value) {
+        for (int i = 0; i < constants.size(); i++) {
+            if (constants.get(i) == value) return "k" + i;
+        }
+        constants.add(value);
+        return "k" + (constants.size() - 1);
+    }
+
+    private void line(String text) {
+        lines++;
+        for (int i = 0; i < indent; i++) body.append("    ");
+        body.append(text).append('\n');
+    }
+
+    private Value temp(Type type, String init) {
+        String name = "t" + tempCount++;
+        line(type.java + " " + name + " = " + init + ";");
+        return new Value(name, type);
+    }
+
+    private String boxed(Value value) {
+        switch (value.type) {
+            case DOUBLE: return "Double.valueOf(" + value.code + ")";
+            case BOOLEAN: return "Boolean.valueOf(" + value.code + ")";
+            default: return value.code;
+        }
+    }
+
+    private String truthy(Value value) {
+        switch (value.type) {
+            case DOUBLE: return "true";
+            case BOOLEAN: return value.code;
+            default: return "Interpreter.isTruthy(" + value.code + ")";
+        }
+    }
+
+    // Operand for the JitRuntime helpers, which take either a double or an
+    // Object on each side.
+    private String operand(Value value) {
+        return value.type == Type.DOUBLE ? value.code : boxed(value);
+    }
+
+    // Whether the variable is a parameter compiled as a double.
+    private boolean isNumber(int depth, int slot) {
+        return depth == 0 && numbers.contains(slot);
+    }
+
+    // Where the variable at the given resolved depth and slot lives: a Java
+    // variable, the frame of a compiled loop, or an upvalue.
+    private String read(int depth, int slot, boolean cell) {
+        if (depth == 1) return "upvalues[" + slot + "].value";
+        if (owner instanceof Stmt.While && !locals.contains(slot)) frameSlots.add(slot);
+        if (locals.contains(slot)) return "v" + slot + (cell ? ".value" : "");
+        if (cell) return "((Upvalue) frame.get(" + slot + ")).value";
+        return "frame.get(" + slot + ")";
+    }
+
+    private void write(int depth, int slot, boolean cell, String value) {
+        if (depth == 0 && !cell && !locals.contains(slot)) {
+            if (owner instanceof Stmt.While) frameSlots.add(slot);
+            line("frame.define(" + slot + ", " + value + ");");
+        } else {
+            line(read(depth, slot, cell) + " = " + value + ";");
+        }
+    }
+
+    // Defines a variable in the function's frame, or a global at the top
+    // level.
+    private void declare(int slot, boolean cell, Token name, String value) {
+        if (slot == -1) {
+            line(globalTable() + ".define(" + literal(name.lexeme) + ", " + value + ");");
+        } else {
+            declare(slot, cell, value);
+        }
+    }
+
+    private void declare(int slot, boolean cell, String value) {
+        if (spill) {
+            line("frame.define(" + slot + ", " + (cell ? "new Upvalue(" + value + ")" : value) + ");");
+            return;
+        }
+        locals.add(slot);
+        if (cell) {
+            line("Upvalue v" + slot + " = new Upvalue(" + value + ");");
+        } else {
+            line("Object v" + slot + " = " + value + ";");
+        }
+    }
+
+    // The upvalues for a closure created here, from the captures the
+    // Resolver recorded. In the scope of a subclass's methods, slot 0 is
+    // the cell holding 'super' and the upvalues are those of that scope.
+    private String capture(int[] captures, String superCell, String upvalues) {
+        List<String> captured = new ArrayList<>();
+        for (int c : captures) {
+            if (c >= 0 && superCell != null) {
+                captured.add(superCell);
+            } else if (c >= 0) {
+                captured.add(locals.contains(c) ? "v" + c : "(Upvalue) frame.get(" + c + ")");
+            } else {
+                captured.add(upvalues + "[" + (-1 - c) + "]");
+            }
+        }
+        if (captured.isEmpty()) return "new Upvalue[0]";
+        return "new Upvalue[] {" + String.join(", ", captured) + "}";
+    }
+
+    private Value expression(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private String arguments(List<Expr> arguments) {
+        List<String> values = new ArrayList<>();
+        for (Expr argument : arguments) {
+            values.add(boxed(expression(argument)));
+        }
+        return "new Object[] {" + String.join(", ", values) + "}";
+    }
+
+    @Override
+    public Value visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth != -1 && isNumber(expr.depth, expr.slot)) {
+            Value value = expression(expr.value);
+            if (value.type != Type.DOUBLE) {
+                failSpeculation(expr.slot);
+                return value;
+            }
+            write(expr.depth, expr.slot, false, value.code);
+            return temp(Type.DOUBLE, read(expr.depth, expr.slot, false));
+        }
+        if (expr.depth == -1) {
+            int slot = globalSlot(expr.name);
+            if (numberGlobals.contains(slot)) {
+                Value value = expression(expr.value);
+                if (value.type != Type.DOUBLE) {
+                    failSpeculation(globals, slot);
+                    return value;
+                }
+                line("g" + slot + " = " + value.code + ";");
+                return temp(Type.DOUBLE, "g" + slot);
+            }
+        }
+        Value value = temp(Type.OBJECT, boxed(expression(expr.value)));
+        if (expr.depth != -1) {
+            write(expr.depth, expr.slot, expr.cell, value.code);
+        } else {
+            line(globalTable() + ".assign(" + globalSlot(expr.name) + ", "
+                    + constant(expr.name) + ", " + value.code + ");");
+        }
+        return value;
+    }
+
+    @Override
+    public Value visitBinaryExpr(Expr.Binary expr) {
+        Value left = expression(expr.left);
+        Value right = expression(expr.right);
+        boolean numbers = left.type == Type.DOUBLE && right.type == Type.DOUBLE;
+        String operator = constant(expr.operator);
+
+        switch (expr.operator.type) {
+            case PLUS:
+                if (numbers) return temp(Type.DOUBLE, left.code + " + " + right.code);
+                return temp(Type.OBJECT, "JitRuntime.add(" + operator + ", "
+                        + boxed(left) + ", " + boxed(right) + ")");
+            case MINUS:
+                return numeric(Type.DOUBLE, numbers, "-", "subtract", operator, left, right);
+            case STAR:
+                return numeric(Type.DOUBLE, numbers, "*", "multiply", operator, left, right);
+            case SLASH:
+                return numeric(Type.DOUBLE, numbers, "/", "divide", operator, left, right);
+            case GREATER:
+                return numeric(Type.BOOLEAN, numbers, ">", "greater", operator, left, right);
+            case GREATER_EQUAL:
+                return numeric(Type.BOOLEAN, numbers, ">=", "greaterEqual", operator, left, right);
+            case LESS:
+                return numeric(Type.BOOLEAN, numbers, "<", "less", operator, left, right);
+            case LESS_EQUAL:
+                return numeric(Type.BOOLEAN, numbers, "<=", "lessEqual", operator, left, right);
+            case BANG_EQUAL:
+                return temp(Type.BOOLEAN, "!Interpreter.isEqual(" + boxed(left) + ", " + boxed(right) + ")");
+            case EQUAL_EQUAL:
+                return temp(Type.BOOLEAN, "Interpreter.isEqual(" + boxed(left) + ", " + boxed(right) + ")");
+        }
+
+        return new Value("null", Type.OBJECT);
+    }
+
+    private Value numeric(Type type, boolean numbers, String java, String helper,
+                          String operator, Value left, Value right) {
+        if (numbers) return temp(type, left.code + " " + java + " " + right.code);
+        return temp(type, "JitRuntime." + helper + "(" + operator + ", "
+                + operand(left) + ", " + operand(right) + ")");
+    }
+
+    @Override
+    public Value visitCallExpr(Expr.Call expr) {
+        makesCalls = true;
+        String paren = constant(expr.paren);
+        String invoke = expr.tailCall ? "tailInvoke" : "invoke";
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            String name = constant(get.name);
+            String cache = constant(new PropertyCache());
+            Value object = expression(get.object);
+            Value receiver = new Value("t" + tempCount++, Type.OBJECT);
+            line("LoxInstance " + receiver.code + " = JitRuntime.instance(" + name + ", "
+                    + boxed(object) + ");");
+            Value method = new Value("t" + tempCount++, Type.OBJECT);
+            line("LoxFunction " + method.code + " = " + cache + ".findMethod("
+                    + receiver.code + ", " + name + ");");
+            Value field = temp(Type.OBJECT, method.code + " == null ? " + cache + ".get("
+                    + receiver.code + ", " + name + ") : null");
+            String arguments = arguments(expr.arguments);
+            return temp(Type.OBJECT, "JitRuntime." + invoke + "(interpreter, " + paren + ", "
+                    + receiver.code + ", " + method.code + ", " + field.code + ", " + arguments + ")");
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            Value superclass = temp(Type.OBJECT, "upvalues[" + callee.slot + "].value");
+            Value object = temp(Type.OBJECT,
+                    read(callee.thisDepth, callee.thisSlot, callee.thisCell));
+            Value method = new Value("t" + tempCount++, Type.OBJECT);
+            line("LoxFunction " + method.code + " = JitRuntime.superMethod("
+                    + superclass.code + ", " + constant(callee.method) + ");");
+            String arguments = arguments(expr.arguments);
+            return temp(Type.OBJECT, "JitRuntime." + invoke + "(interpreter, " + paren
+                    + ", (LoxInstance) " + object.code + ", " + method.code + ", null, "
+                    + arguments + ")");
+        }
+
+        Value callee = expression(expr.callee);
+        Stmt.Function target = expr.tailCall ? null : linkTarget(expr);
+        if (target != null) return linkedCall(expr, paren, callee, target);
+        String arguments = arguments(expr.arguments);
+        return temp(Type.OBJECT, "JitRuntime." + (expr.tailCall ? "tailCall" : "call")
+                + "(interpreter, " + paren + ", "
+                + boxed(callee) + ", " + arguments + ")");
+    }
+
+    // The declaration of the function a call names, if the JIT can link
+    // the call to it: a global that holds a plain function, not a method,
+    // whose body can be compiled. Tail calls are left to the interpreter,
+    // which runs them without growing the stack.
+    private Stmt.Function linkTarget(Expr.Call expr) {
+        if (speculation == null || !(expr.callee instanceof Expr.Variable)) return null;
+        Expr.Variable variable = (Expr.Variable) expr.callee;
+        if (variable.depth != -1) return null;
+        Object value = globals.peek(globals.slotFor(variable.name.lexeme));
+        if (!(value instanceof LoxFunction)) return null;
+        LoxFunction function = (LoxFunction) value;
+        Stmt.Function declaration = function.declaration;
+        if (declaration == null || function.firstParameter() != 0
+                || function.arity() != expr.arguments.size()) {
+            return null;
+        }
+        if (linked.containsKey(declaration)) return declaration;
+        if (linked.size() >= MAX_LINKED || !canCompile(declaration)) return null;
+        return declaration;
+    }
+
+    private Value linkedCall(Expr.Call expr, String paren, Value callee, Stmt.Function target) {
+        List<Value> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) arguments.add(expression(argument));
+        int index = link(target, false);
+        Set<Integer> numbers = parameterNumbers(target);
+
+        String function = "((LoxFunction) " + callee.code + ")";
+        StringBuilder guard = new StringBuilder(callee.code + " instanceof LoxFunction && "
+                + function + ".declaration == " + constant(target));
+        List<String> linkedArguments = new ArrayList<>();
+        List<String> boxedArguments = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i++) {
+            Value argument = arguments.get(i);
+            boxedArguments.add(boxed(argument));
+            if (!numbers.contains(i)) {
+                linkedArguments.add(boxed(argument));
+            } else if (argument.type == Type.DOUBLE) {
+                linkedArguments.add(argument.code);
+            } else {
+                guard.append(" && ").append(boxed(argument)).append(" instanceof Double");
+                linkedArguments.add("(double) (Double) " + boxed(argument));
+            }
+        }
+
+        String result = "t" + tempCount++;
+        line("Object " + result + ";");
+        line("if (" + guard + ") {");
+        line("    " + result + " = link" + index + "(interpreter, " + paren + ", "
+                + function + ".upvalues" + list(linkedArguments) + ");");
+        line("} else {");
+        line("    " + result + " = JitRuntime.call(interpreter, " + paren + ", "
+                + boxed(callee) + ", new Object[] {" + String.join(", ", boxedArguments) + "});");
+        line("}");
+        return new Value(result, Type.OBJECT);
+    }
+
+    @Override
+    public Value visitGetExpr(Expr.Get expr) {
+        Value object = expression(expr.object);
+        return temp(Type.OBJECT, "JitRuntime.get(" + constant(new PropertyCache()) + ", "
+                + constant(expr.name) + ", " + boxed(object) + ")");
+    }
+
+    @Override
+    public Value visitGroupingExpr(Expr.Grouping expr) {
+        return expression(expr.expression);
+    }
+
+    @Override
+    public Value visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            return new Value(number((double) value), Type.DOUBLE);
+        }
+        if (value == null) return new Value("null", Type.OBJECT);
+        return new Value(constant(value), Type.OBJECT);
+    }
+
+    // A double as Java source; a literal too large for a double is
+    // infinite, which has no literal of its own.
+    private static String number(double value) {
+        if (Double.isNaN(value)) return "Double.NaN";
+        if (value == Double.POSITIVE_INFINITY) return "Double.POSITIVE_INFINITY";
+        if (value == Double.NEGATIVE_INFINITY) return "Double.NEGATIVE_INFINITY";
+        return Double.toString(value);
+    }
+
+    @Override
+    public Value visitLogicalExpr(Expr.Logical expr) {
+        Value left = expression(expr.left);
+        String result = "t" + tempCount++;
+        line("Object " + result + ";");
+        boolean isOr = expr.operator.type == TokenType.OR;
+        line("if (" + (isOr ? "" : "!") + "(" + truthy(left) + ")) {");
+        line("    " + result + " = " + boxed(left) + ";");
+        line("} else {");
+        indent++;
+        Value right = expression(expr.right);
+        line(result + " = " + boxed(right) + ";");
+        indent--;
+        line("}");
+        return new Value(result, Type.OBJECT);
+    }
+
+    @Override
+    public Value visitSetExpr(Expr.Set expr) {
+        String name = constant(expr.name);
+        Value object = expression(expr.object);
+        String target = "t" + tempCount++;
+        line("LoxInstance " + target + " = JitRuntime.fieldTarget(" + name + ", "
+                + boxed(object) + ");");
+        Value value = temp(Type.OBJECT, boxed(expression(expr.value)));
+        line(constant(new PropertyCache()) + ".set(" + target + ", " + name + ", "
+                + value.code + ");");
+        return value;
+    }
+
+    @Override
+    public Value visitSuperExpr(Expr.Super expr) {
+        return temp(Type.OBJECT, "JitRuntime.bindSuper(upvalues[" + expr.slot + "].value, "
+                + read(expr.thisDepth, expr.thisSlot, expr.thisCell) + ", "
+                + constant(expr.method) + ")");
+    }
+
+    @Override
+    public Value visitThisExpr(Expr.This expr) {
+        return temp(Type.OBJECT, read(expr.depth, expr.slot, expr.cell));
+    }
+
+    @Override
+    public Value visitUnaryExpr(Expr.Unary expr) {
+        Value operand = expression(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            if (operand.type == Type.DOUBLE) return temp(Type.DOUBLE, "-" + operand.code);
+            return temp(Type.DOUBLE, "JitRuntime.negate(" + constant(expr.operator) + ", "
+                    + boxed(operand) + ")");
+        }
+        return temp(Type.BOOLEAN, "!(" + truthy(operand) + ")");
+    }
+
+    @Override
+    public Value visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != -1) {
+            Type type = isNumber(expr.depth, expr.slot) ? Type.DOUBLE : Type.OBJECT;
+            return temp(type, read(expr.depth, expr.slot, expr.cell));
+        }
+        int slot = globalSlot(expr.name);
+        if (numberGlobals.contains(slot)) return temp(Type.DOUBLE, "g" + slot);
+        return temp(Type.OBJECT, globalTable() + ".get(" + slot + ", " + constant(expr.name) + ")");
+    }
+
+    // The slot of a global, noted when a loop uses it.
+    private int globalSlot(Token name) {
+        int slot = globals.slotFor(name.lexeme);
+        if (owner instanceof Stmt.While) globalSlots.putIfAbsent(slot, name);
+        return slot;
+    }
+
+    // Generates the statements in order and reports whether control can
+    // reach the end of them. Statements after a 'return' are dropped, since
+    // javac rejects unreachable code.
+    private boolean statements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!statement.accept(this)) return false;
+        }
+        return true;
+    }
+
+    private boolean nested(Stmt statement) {
+        indent++;
+        boolean completes = statement.accept(this);
+        indent--;
+        return completes;
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        // The block's variables go out of scope with the Java block, and
+        // their slots may be reused after it.
+        line("{");
+        indent++;
+        Set<Integer> enclosingLocals = locals;
+        boolean enclosingSpill = spill;
+        locals = new HashSet<>(locals);
+        spill = false;
+        boolean completes = statements(stmt.statements);
+        locals = enclosingLocals;
+        spill = enclosingSpill;
+        indent--;
+        line("}");
+        return completes;
+    }
+
+    @Override
+    public Boolean visitClassStmt(Stmt.Class stmt) {
+        if (functions == null) throw new IllegalStateException("Classes are not compiled.");
+
+        String superclass = "null";
+        if (stmt.superclass != null) {
+            superclass = temp(Type.OBJECT, boxed(expression(stmt.superclass))).code;
+            line("if (!(" + superclass + " instanceof LoxClass)) {");
+            line("    throw new RuntimeError(" + constant(stmt.superclass.name)
+                    + ", \"Superclass must be a class.\");");
+            line("}");
+        }
+        declare(stmt.slot, stmt.cell, stmt.name, "null");
+
+        String methods = "t" + tempCount++;
+        line("Map<String, LoxFunction> " + methods + " = new HashMap<>();");
+        String superCell = null;
+        String upvalues = "upvalues";
+        if (stmt.superclass != null) {
+            upvalues = "t" + tempCount++;
+            line("Upvalue[] " + upvalues + " = " + capture(stmt.captures, null, "upvalues") + ";");
+            superCell = "t" + tempCount++;
+            line("Upvalue " + superCell + " = new Upvalue(" + superclass + ");");
+            line(methods + ".putAll(((LoxClass) " + superclass + ").methods);");
+        }
+        for (Stmt.Function method : stmt.methods) {
+            String name = method.name.lexeme;
+            line(methods + ".put(" + literal(name) + ", " + function(method,
+                    capture(method.captures, superCell, upvalues),
+                    name.equals("init"), true) + ");");
+        }
+
+        Value klass = temp(Type.OBJECT, "new LoxClass(" + literal(stmt.name.lexeme)
+                + ", (LoxClass) " + superclass + ", " + methods + ")");
+        if (stmt.slot != -1) {
+            write(0, stmt.slot, stmt.cell, klass.code);
+        } else {
+            line(globalTable() + ".define(" + literal(stmt.name.lexeme) + ", " + klass.code + ");");
+        }
+        return true;
+    }
+
+    private String function(Stmt.Function function, String upvalues, boolean isInitializer,
+                            boolean isMethod) {
+        return "new LoxFunction(" + literal(function.name.lexeme) + ", "
+                + function.params.size() + ", " + function.frameSize + ", new "
+                + functions.classFor(function, isMethod) + "(), " + upvalues + ", "
+                + isInitializer + ", " + isMethod + ")";
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        expression(stmt.expression);
+        return true;
+    }
+
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        if (functions == null) throw new IllegalStateException("Nested functions are not compiled.");
+        // A captured function gets its cell first, so that it can capture
+        // itself and recurse.
+        if (stmt.cell) {
+            declare(stmt.slot, true, "null");
+            write(0, stmt.slot, true, function(stmt, capture(stmt.captures, null, "upvalues"),
+                    false, false));
+        } else {
+            declare(stmt.slot, false, stmt.name, function(stmt,
+                    capture(stmt.captures, null, "upvalues"), false, false));
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        Value condition = expression(stmt.condition);
+        line("if (" + truthy(condition) + ") {");
+        boolean completes = nested(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            line("} else {");
+            completes |= nested(stmt.elseBranch);
+        } else {
+            completes = true;
+        }
+        line("}");
+        return completes;
+    }
+
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        Value value = expression(stmt.expression);
+        line("System.out.println(Interpreter.stringify(" + boxed(value) + "));");
+        return true;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            line("return null;");
+        } else {
+            line("return " + boxed(expression(stmt.value)) + ";");
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        String value = "null";
+        if (stmt.initializer != null) value = boxed(expression(stmt.initializer));
+        declare(stmt.slot, stmt.cell, stmt.name, value);
+        return true;
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        line("while (true) {");
+        indent++;
+        Value condition = expression(stmt.condition);
+        line("if (!(" + truthy(condition) + ")) break;");
+        indent--;
+        nested(stmt.body);
+        line("}");
+        return true;
+    }
+}
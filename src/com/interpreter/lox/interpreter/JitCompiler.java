@@ -0,0 +1,208 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.parser.Stmt;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Compiles hot functions to JVM classes so that HotSpot optimizes the Lox
+// code itself. A function is queued once it has been called CALL_THRESHOLD
+// times or its loops have run LOOP_THRESHOLD iterations. The Java source is
+// generated on the interpreter thread, where the AST and the GlobalTable
+// may be touched safely; javac and class loading run on a background
+// thread, and the function keeps being interpreted until its compiled
+// entry point is published. Functions that cannot be compiled, or any
+// failure along the way, simply leave the function interpreted.
+//
+// While a function is interpreted its profile records the argument types,
+// and the compiled code speculates that parameters which only ever held
+// numbers keep doing so. Arguments that break the speculation send the
+// call back to the interpreter and discard the compiled code. Calls the
+// compiled code makes to other functions are linked to compiled copies of
+// their bodies, speculating on their profiles in the same way, so that
+// hot calls neither box their arguments nor go through the interpreter.
+//
+// Loops are counted on their own as well, since top-level loops never
+// belong to a call that could be promoted. Once a loop has run
+// LOOP_THRESHOLD iterations it is compiled by itself, and the interpreter
+// hands the rest of the loop over at the next back-edge (on-stack
+// replacement): the compiled loop runs in the live environment of the
+// interpreted one. The variables from outside the loop that hold numbers
+// at that point are speculated to keep doing so, like arguments are; a
+// loop entered with something else in them is interpreted instead.
+class JitCompiler {
+    static final int CALL_THRESHOLD = 1000;
+    static final int LOOP_THRESHOLD = 10000;
+    // A function deoptimized this many times stays interpreted.
+    static final int MAX_DEOPTIMIZATIONS = 8;
+
+    private final GlobalTable globals;
+    private final Map<Stmt.Function, FunctionProfile> profiles = new IdentityHashMap<>();
+    private final Map<Stmt.While, LoopProfile> loops = new IdentityHashMap<>();
+    private final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    private ExecutorService worker;
+    private int classCount = 0;
+
+    JitCompiler(GlobalTable globals) {
+        this.globals = globals;
+    }
+
+    FunctionProfile profile(Stmt.Function declaration) {
+        return profiles.computeIfAbsent(declaration, key -> new FunctionProfile());
+    }
+
+    void countCall(Stmt.Function declaration, FunctionProfile profile, boolean isMethod,
+                   Environment frame) {
+        if (profile.queued) return;
+        int first = isMethod ? 1 : 0;
+        profile.recordArguments(frame, first, declaration.params.size());
+        if (++profile.calls < CALL_THRESHOLD && profile.backEdges < LOOP_THRESHOLD) return;
+
+        profile.queued = true;
+        if (javac == null || !JavaGenerator.canCompile(declaration)) return;
+
+        // Parameters that have only held numbers are compiled as doubles,
+        // unless the body assigns them something that may not be one. The
+        // same goes for the functions the code links calls to.
+        Map<Object, Set<Integer>> numbers = new IdentityHashMap<>();
+        Set<Integer> parameters = new HashSet<>();
+        for (int parameter : profile.numberParameters()) parameters.add(first + parameter);
+        numbers.put(declaration, parameters);
+
+        String className = "Jit$" + declaration.name.lexeme + "$" + classCount++;
+        JavaGenerator generator;
+        String source;
+        do {
+            generator = new JavaGenerator(globals, speculation(numbers));
+            source = generator.generate(className, declaration, isMethod);
+        } while (narrow(numbers, generator.failedSpeculations()));
+        compile(className, source, generator.constants(),
+                code -> profile.compiled = (CompiledFunction) code);
+    }
+
+    // Looks up what a generator speculates on, starting a function it
+    // links a call to from the argument types its profile recorded.
+    private Function<Object, Set<Integer>> speculation(Map<Object, Set<Integer>> numbers) {
+        return owner -> numbers.computeIfAbsent(owner, key -> key instanceof Stmt.Function
+                ? profile((Stmt.Function) key).numberParameters() : new HashSet<>());
+    }
+
+    // Drops the speculations the generated code broke; returns whether
+    // there were any, so that the code has to be generated again.
+    private static boolean narrow(Map<Object, Set<Integer>> numbers,
+                                  Map<Object, Set<Integer>> failed) {
+        for (Map.Entry<Object, Set<Integer>> entry : failed.entrySet()) {
+            numbers.get(entry.getKey()).removeAll(entry.getValue());
+        }
+        return !failed.isEmpty();
+    }
+
+    LoopProfile profile(Stmt.While loop) {
+        return loops.computeIfAbsent(loop, key -> new LoopProfile());
+    }
+
+    // Counts one iteration of the loop, which runs in the given frame, and
+    // returns its compiled code once that is ready to take over.
+    CompiledLoop backEdge(Stmt.While loop, LoopProfile profile, Environment frame) {
+        if (++profile.backEdges < LOOP_THRESHOLD) return null;
+        if (!profile.queued) {
+            profile.queued = true;
+            if (javac == null || !JavaGenerator.canCompile(loop)) return null;
+
+            // A first pass finds the variables from outside the loop that
+            // it uses. Globals are only speculated on in loops that make no
+            // calls, since a call could assign them.
+            String className = "Jit$loop$" + classCount++;
+            JavaGenerator probe = new JavaGenerator(globals, speculation(new IdentityHashMap<>()));
+            probe.generateLoop(className, loop);
+            Set<Integer> slots = new HashSet<>();
+            for (int slot : probe.frameSlots()) {
+                if (frame.get(slot) instanceof Double) slots.add(slot);
+            }
+            Set<Integer> globalSlots = new HashSet<>();
+            if (!probe.makesCalls()) {
+                for (int slot : probe.globalSlots()) {
+                    if (globals.peek(slot) instanceof Double) globalSlots.add(slot);
+                }
+            }
+
+            JavaGenerator generator;
+            String source;
+            Map<Object, Set<Integer>> numbers = new IdentityHashMap<>();
+            numbers.put(loop, slots);
+            numbers.put(globals, globalSlots);
+            do {
+                generator = new JavaGenerator(globals, speculation(numbers));
+                source = generator.generateLoop(className, loop);
+            } while (narrow(numbers, generator.failedSpeculations()));
+            compile(className, source, generator.constants(),
+                    code -> profile.compiled = (CompiledLoop) code);
+        }
+        return profile.compiled;
+    }
+
+    // Drops a compiled loop that was entered with variables breaking its
+    // speculation. It is compiled again, from what they hold then, once it
+    // is hot again.
+    void deoptimize(LoopProfile profile) {
+        profile.compiled = null;
+        profile.deoptimizations++;
+        profile.backEdges = 0;
+        profile.queued = profile.deoptimizations >= MAX_DEOPTIMIZATIONS;
+    }
+
+    private void compile(String className, String source, Object[] constants,
+                         Consumer<Object> publish) {
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "lox-jit");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        worker.execute(() -> {
+            try {
+                publish.accept(define(className, source, constants));
+            } catch (Throwable ignored) {
+                // Stays interpreted.
+            }
+        });
+    }
+
+    // Drops compiled code whose speculation failed. The arguments that
+    // broke it are recorded, so the function is recompiled, once it is hot
+    // again, without speculating on them.
+    void deoptimize(FunctionProfile profile, Stmt.Function declaration, boolean isMethod,
+                    Environment frame) {
+        profile.compiled = null;
+        profile.deoptimizations++;
+        profile.calls = 0;
+        profile.backEdges = 0;
+        profile.recordArguments(frame, isMethod ? 1 : 0, declaration.params.size());
+        profile.queued = profile.deoptimizations >= MAX_DEOPTIMIZATIONS;
+    }
+
+    private Object define(String className, String source, Object[] constants)
+            throws Throwable {
+        Map<String, byte[]> classes = SourceCompiler.compile(javac,
+                Map.of(className, source), null);
+        if (classes == null) throw new IllegalStateException(className + " did not compile");
+        byte[] bytes = classes.get("com.interpreter.lox.interpreter." + className);
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class, Object[].class));
+        return constructor.invoke(constants);
+    }
+}
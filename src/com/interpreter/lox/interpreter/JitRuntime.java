@@ -0,0 +1,259 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.util.RuntimeError;
+
+// Operations that JIT-compiled code calls into. Each one has the same
+// checks, error messages and evaluation order as the interpreter; the
+// overloads taking a double let numeric operands stay unboxed.
+final class JitRuntime {
+    private JitRuntime() {
+    }
+
+    static Object add(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        return Interpreter.binaryOp(operator, left, right);
+    }
+
+    static double notNumbers(Token operator) {
+        throw new RuntimeError(operator, "Operands must be numbers");
+    }
+
+    static double subtract(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left - (double) right;
+        }
+        return notNumbers(operator);
+    }
+
+    static double subtract(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left - right;
+        return notNumbers(operator);
+    }
+
+    static double subtract(Token operator, double left, Object right) {
+        if (right instanceof Double) return left - (double) right;
+        return notNumbers(operator);
+    }
+
+    static double multiply(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left * (double) right;
+        }
+        return notNumbers(operator);
+    }
+
+    static double multiply(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left * right;
+        return notNumbers(operator);
+    }
+
+    static double multiply(Token operator, double left, Object right) {
+        if (right instanceof Double) return left * (double) right;
+        return notNumbers(operator);
+    }
+
+    static double divide(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left / (double) right;
+        }
+        return notNumbers(operator);
+    }
+
+    static double divide(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left / right;
+        return notNumbers(operator);
+    }
+
+    static double divide(Token operator, double left, Object right) {
+        if (right instanceof Double) return left / (double) right;
+        return notNumbers(operator);
+    }
+
+    static boolean less(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left < (double) right;
+        }
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean less(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left < right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean less(Token operator, double left, Object right) {
+        if (right instanceof Double) return left < (double) right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean lessEqual(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left <= (double) right;
+        }
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean lessEqual(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left <= right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean lessEqual(Token operator, double left, Object right) {
+        if (right instanceof Double) return left <= (double) right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean greater(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left > (double) right;
+        }
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean greater(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left > right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean greater(Token operator, double left, Object right) {
+        if (right instanceof Double) return left > (double) right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean greaterEqual(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left >= (double) right;
+        }
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean greaterEqual(Token operator, Object left, double right) {
+        if (left instanceof Double) return (double) left >= right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static boolean greaterEqual(Token operator, double left, Object right) {
+        if (right instanceof Double) return left >= (double) right;
+        notNumbers(operator);
+        return false;
+    }
+
+    static double negate(Token operator, Object operand) {
+        if (operand instanceof Double) return -(double) operand;
+        throw new RuntimeError(operator, "Operand must be a number");
+    }
+
+    static Object call(Interpreter interpreter, Token paren, Object callee,
+                       Object[] arguments) {
+        return call(interpreter, paren, callee, arguments, false);
+    }
+
+    // A call in tail position, which returns a TailCall for Lox functions.
+    static Object tailCall(Interpreter interpreter, Token paren, Object callee,
+                           Object[] arguments) {
+        return call(interpreter, paren, callee, arguments, true);
+    }
+
+    private static Object call(Interpreter interpreter, Token paren, Object callee,
+                               Object[] arguments, boolean tailCall) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        checkArity(paren, function, arguments);
+        if (tailCall && function instanceof LoxFunction) {
+            return ((LoxFunction) function).tailCall(arguments);
+        }
+        try {
+            return function.call(interpreter, arguments);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    // A method call whose receiver and method were already looked up: a
+    // null method means the property was the field value.
+    static Object invoke(Interpreter interpreter, Token paren, LoxInstance receiver,
+                         LoxFunction method, Object field, Object[] arguments) {
+        if (method == null) return call(interpreter, paren, field, arguments);
+
+        checkArity(paren, method, arguments);
+        try {
+            return method.callMethod(interpreter, receiver, arguments);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    static RuntimeError stackOverflow(Token paren) {
+        return new RuntimeError(paren, "Stack overflow.");
+    }
+
+    // Counts a call linked straight to compiled code, which does not go
+    // through LoxFunction.call, towards the call depth.
+    static void enter(Interpreter interpreter, Token paren) {
+        if (interpreter.callDepth == interpreter.maxDepth) throw stackOverflow(paren);
+        interpreter.callDepth++;
+    }
+
+    static void leave(Interpreter interpreter) {
+        interpreter.callDepth--;
+    }
+
+    static Object tailInvoke(Interpreter interpreter, Token paren, LoxInstance receiver,
+                             LoxFunction method, Object field, Object[] arguments) {
+        if (method == null) return tailCall(interpreter, paren, field, arguments);
+
+        checkArity(paren, method, arguments);
+        return method.tailCallMethod(receiver, arguments);
+    }
+
+    private static void checkArity(Token paren, LoxCallable function, Object[] arguments) {
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(paren,
+                    "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+        }
+    }
+
+    static LoxInstance instance(Token name, Object object) {
+        if (object instanceof LoxInstance) return (LoxInstance) object;
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static LoxInstance fieldTarget(Token name, Object object) {
+        if (object instanceof LoxInstance) return (LoxInstance) object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object get(PropertyCache cache, Token name, Object object) {
+        return cache.get(instance(name, object), name);
+    }
+
+    static LoxFunction superMethod(Object superclass, Token method) {
+        LoxFunction function = ((LoxClass) superclass).findMethod(method.lexeme);
+        if (function == null) {
+            throw new RuntimeError(method,
+                    "Undefined property '" + method.lexeme + "'.");
+        }
+        return function;
+    }
+
+    static Object bindSuper(Object superclass, Object object, Token method) {
+        return superMethod(superclass, method).bind((LoxInstance) object);
+    }
+}
@@ -0,0 +1,10 @@
+package com.interpreter.lox.interpreter;
+
+// Iteration count of one loop, for compiling it by itself once it is hot.
+class LoopProfile {
+    int backEdges = 0;
+    boolean queued = false;
+    int deoptimizations = 0;
+    // Published by the JIT thread once the compiled class is loaded.
+    volatile CompiledLoop compiled;
+}
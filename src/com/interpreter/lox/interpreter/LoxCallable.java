@@ -1,8 +1,33 @@
 package com.interpreter.lox.interpreter;
 
-import java.util.List;
-
+// Anything Lox code can call. Arguments come in an array, already checked
+// against arity(); callers with up to four arguments use the call0-call4
+// variants instead, so callables that take their arguments directly (Lox
+// functions put them straight into the callee's frame) need no array.
 public interface LoxCallable {
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, new Object[] {a, b, c, d});
+    }
 }
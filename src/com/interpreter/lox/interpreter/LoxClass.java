@@ -1,28 +1,31 @@
 package com.interpreter.lox.interpreter;
 
-
-import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
+    // Flattened method table: inherited methods were copied down when the
+    // class was defined, so every lookup is a single probe.
+    final Map<String, LoxFunction> methods;
+    final LoxFunction initializer;
+    private final int arity;
+    // Every instance starts out in the class's empty shape, so a shape
+    // also identifies the class of the instances that have it.
+    final Shape rootShape = new Shape();
+    // How many fields instances of this class have grown to so far; new
+    // instances preallocate that much to avoid regrowing their storage.
+    int fieldCapacity = 0;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
         this.methods = methods;
+        this.initializer = methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-
-        return null;
+        return methods.get(name);
     }
 
     @Override
@@ -30,20 +33,69 @@ class LoxClass implements LoxCallable {
         return name;
     }
     @Override
-    public Object call(Interpreter interpreter,
-                       List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.callMethod(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    // The initializer's arguments go straight into its frame, after the
+    // new instance in slot 0.
+    @Override
+    public Object call0(Interpreter interpreter) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, initializer.frame(instance));
         }
         return instance;
     }
 
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        Environment frame = initializer.frame(instance);
+        frame.define(1, a);
+        initializer.call(interpreter, frame);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        Environment frame = initializer.frame(instance);
+        frame.define(1, a);
+        frame.define(2, b);
+        initializer.call(interpreter, frame);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        Environment frame = initializer.frame(instance);
+        frame.define(1, a);
+        frame.define(2, b);
+        frame.define(3, c);
+        initializer.call(interpreter, frame);
+        return instance;
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        LoxInstance instance = new LoxInstance(this);
+        Environment frame = initializer.frame(instance);
+        frame.define(1, a);
+        frame.define(2, b);
+        frame.define(3, c);
+        frame.define(4, d);
+        initializer.call(interpreter, frame);
+        return instance;
+    }
+
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 }
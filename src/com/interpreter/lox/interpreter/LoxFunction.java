@@ -1,54 +1,244 @@
 package com.interpreter.lox.interpreter;
 
-import com.interpreter.lox.interpreter.Environment;
 import com.interpreter.lox.interpreter.Interpreter;
 import com.interpreter.lox.interpreter.LoxCallable;
 import com.interpreter.lox.parser.Stmt;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    // Null for functions compiled ahead of time, which have no AST.
+    final Stmt.Function declaration;
+    private final String name;
+    private final int arity;
+    private final int frameSize;
+    // The variables of enclosing functions that the body uses.
+    final Upvalue[] upvalues;
     private final boolean isInitializer;
+    // Methods keep 'this' in slot 0 of their own frame, ahead of the
+    // parameters. A method only carries a receiver once it is bound, which
+    // happens when it is used as a value rather than called directly.
+    private final boolean isMethod;
+    private final LoxInstance receiver;
+    // Set for functions created by the node engine, whose body runs as a
+    // node tree instead of through the visitor.
+    private final FunctionNode body;
+    // Set for functions compiled ahead of time.
+    private final CompiledFunction code;
+    // Looked up on the first call when the JIT is enabled.
+    private FunctionProfile profile;
 
-    LoxFunction(Stmt.Function declaration, Environment closure,
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues,
                 boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, false, null, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues,
+                boolean isInitializer, boolean isMethod, LoxInstance receiver) {
+        this(declaration, upvalues, isInitializer, isMethod, receiver, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues,
+                boolean isInitializer, boolean isMethod, LoxInstance receiver,
+                FunctionNode body) {
+        this(declaration, declaration.name.lexeme, declaration.params.size(),
+                declaration.frameSize, null, upvalues, isInitializer, isMethod, receiver, body);
+    }
+
+    LoxFunction(String name, int arity, int frameSize, CompiledFunction code,
+                Upvalue[] upvalues, boolean isInitializer, boolean isMethod) {
+        this(null, name, arity, frameSize, code, upvalues, isInitializer, isMethod, null, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, String name, int arity, int frameSize,
+                        CompiledFunction code, Upvalue[] upvalues,
+                        boolean isInitializer, boolean isMethod, LoxInstance receiver,
+                        FunctionNode body) {
         this.isInitializer = isInitializer;
         this.declaration = declaration;
-        this.closure = closure;
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.code = code;
+        this.upvalues = upvalues;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
+        this.body = body;
     }
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment,
-                isInitializer);
+        LoxFunction bound = new LoxFunction(declaration, name, arity, frameSize, code,
+                upvalues, isInitializer, true, instance, body);
+        bound.profile = profile;
+        return bound;
     }
 
     @Override
     public int arity() {
-        return declaration.params.size();
+        return arity;
     }
 
-    @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for(int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    // Parameters occupy the first slots of the frame, in order, after the
+    // receiver for methods.
+    int firstParameter() {
+        return isMethod ? 1 : 0;
+    }
+
+    // A frame for a call, with the receiver in place; the caller stores the
+    // arguments from firstParameter() on and passes it to call().
+    Environment frame(LoxInstance receiver) {
+        Environment frame = new Environment(frameSize, upvalues);
+        if (isMethod) frame.define(0, receiver);
+        return frame;
+    }
+
+    Environment frame() {
+        Environment frame = new Environment(frameSize, upvalues);
+        if (isMethod) frame.define(0, receiver);
+        return frame;
+    }
+
+    private Environment frame(LoxInstance receiver, Object[] arguments) {
+        Environment frame = frame(receiver);
+        int first = firstParameter();
+        for (int i = 0; i < arguments.length; i++) {
+            frame.define(first + i, arguments[i]);
         }
+        return frame;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, frame(receiver, arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return call(interpreter, frame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment frame = frame();
+        int first = firstParameter();
+        frame.define(first, a);
+        return call(interpreter, frame);
+    }
 
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment frame = frame();
+        int first = firstParameter();
+        frame.define(first, a);
+        frame.define(first + 1, b);
+        return call(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = frame();
+        int first = firstParameter();
+        frame.define(first, a);
+        frame.define(first + 1, b);
+        frame.define(first + 2, c);
+        return call(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment frame = frame();
+        int first = firstParameter();
+        frame.define(first, a);
+        frame.define(first + 1, b);
+        frame.define(first + 2, c);
+        frame.define(first + 3, d);
+        return call(interpreter, frame);
+    }
+
+    // Runs the function with the given receiver as 'this', without
+    // creating a bound method first.
+    Object callMethod(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+        return call(interpreter, frame(receiver, arguments));
+    }
+
+    // This function as a pending tail call.
+    TailCall tailCall(Object[] arguments) {
+        return new TailCall(this, frame(receiver, arguments));
+    }
+
+    TailCall tailCallMethod(LoxInstance receiver, Object[] arguments) {
+        return new TailCall(this, frame(receiver, arguments));
+    }
+
+    // Runs the function on a frame from frame() that holds the arguments.
+    // Tail calls the body ends with run here, one after the other, rather
+    // than inside it, so they do not count towards the call depth. Going
+    // past the depth limit fails like running out of Java stack does, and
+    // the call site reports it.
+    Object call(Interpreter interpreter, Environment frame) {
+        if (interpreter.callDepth == interpreter.maxDepth) throw new StackOverflowError();
+        interpreter.callDepth++;
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnVal) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnVal.value;
+            return finish(interpreter, invoke(interpreter, frame));
+        } finally {
+            interpreter.callDepth--;
+        }
+    }
+
+    // Makes the tail calls a body returned, one after the other, and
+    // returns the value of the last.
+    static Object finish(Interpreter interpreter, Object value) {
+        while (value instanceof TailCall) {
+            TailCall call = (TailCall) value;
+            value = call.function.invoke(interpreter, call.frame);
+        }
+        return value;
+    }
+
+    // Runs the body once; the result may be a TailCall still to be made.
+    private Object invoke(Interpreter interpreter, Environment frame) {
+        // An initializer returns its receiver, read before slot 0 can turn
+        // into a cell.
+        Object receiver = isInitializer ? frame.get(0) : null;
+        if (code != null) {
+            Object value = code.call(interpreter, frame);
+            return isInitializer ? receiver : value;
+        }
+        JitCompiler jit = interpreter.jit;
+        if (jit != null) {
+            if (profile == null) profile = jit.profile(declaration);
+            CompiledFunction compiled = profile.compiled;
+            if (compiled == null) {
+                jit.countCall(declaration, profile, isMethod, frame);
+            } else {
+                Object value = compiled.call(interpreter, frame);
+                if (value != CompiledFunction.DEOPTIMIZE) {
+                    return isInitializer ? receiver : value;
+                }
+                // A speculation failed before the compiled code did
+                // anything, so this call simply runs interpreted.
+                jit.deoptimize(profile, declaration, isMethod, frame);
+            }
+        }
+
+        // Captured parameters move into cells before the body runs.
+        for (int slot : declaration.cellParameters) {
+            frame.define(slot, new Upvalue(frame.get(slot)));
+        }
+
+        // Loop iterations in the body count towards this function's profile.
+        FunctionProfile caller = interpreter.activeProfile;
+        interpreter.activeProfile = profile;
+        Object value;
+        if (body != null) {
+            value = body.execute(frame);
+        } else {
+            interpreter.executeBlock(declaration.body, frame);
+            value = interpreter.completeCall();
         }
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        interpreter.activeProfile = caller;
+        return isInitializer ? receiver : value;
     }
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + name + ">";
     }
 }
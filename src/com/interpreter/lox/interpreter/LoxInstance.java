@@ -3,19 +3,22 @@ package com.interpreter.lox.interpreter;
 import com.interpreter.lox.lexer.Token;
 import com.interpreter.lox.util.RuntimeError;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.fieldCapacity];
     }
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.lexeme);
+        if (index != -1) {
+            return fields[index];
         }
         LoxFunction method = klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
@@ -24,7 +27,26 @@ class LoxInstance {
                 "Undefined property '" + name.lexeme + "'.");
     }
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.lexeme);
+        if (index == -1) {
+            addField(shape.withField(name.lexeme), value);
+            return;
+        }
+        fields[index] = value;
+    }
+
+    // Moves the instance to next, a child of its current shape, storing
+    // value in the field that the transition added.
+    void addField(Shape next, Object value) {
+        int index = next.fieldCount - 1;
+        if (index == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, index * 2));
+        }
+        if (next.fieldCount > klass.fieldCapacity) {
+            klass.fieldCapacity = next.fieldCount;
+        }
+        fields[index] = value;
+        shape = next;
     }
 
     @Override
@@ -0,0 +1,31 @@
+package com.interpreter.lox.interpreter;
+
+// Base of the self-specializing execution tree that NodeBuilder produces
+// from the resolved AST. A node that guessed wrong about the types it sees
+// rewrites itself in place: replace() swaps it for a more general node in
+// its parent, so later executions go straight to the new one.
+abstract class Node {
+    Node parent;
+    // Set once the node has been swapped out of the tree. A recursive call
+    // can rewrite a node while an outer execution of it is still running;
+    // the outer one must then not rewrite it a second time.
+    boolean replaced;
+
+    final <T extends Node> T adopt(T child) {
+        if (child != null) child.parent = this;
+        return child;
+    }
+
+    final <T extends Node> T replace(T replacement) {
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        replaced = true;
+        return replacement;
+    }
+
+    // Nodes with expression children override this to swap the child that
+    // is being rewritten.
+    void replaceChild(Node child, Node replacement) {
+        throw new IllegalStateException("Not a child of this node.");
+    }
+}
@@ -0,0 +1,221 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.TokenType;
+import com.interpreter.lox.parser.Expr;
+import com.interpreter.lox.parser.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Translates the resolved AST into the node tree. Resolution results are
+// baked into the nodes: locals become depth/slot reads, globals get their
+// GlobalTable slot up front, and each operator gets its own node class.
+class NodeBuilder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter interpreter;
+    private final GlobalTable globals;
+
+    NodeBuilder(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    StmtNode[] build(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = statements.get(i).accept(this);
+        }
+        return nodes;
+    }
+
+    private ExprNode build(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private StmtNode build(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private ExprNode[] buildArguments(Expr.Call expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        return arguments;
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = build(expr.value);
+        if (expr.depth == 1) return new ExprNode.WriteUpvalue(expr.slot, value);
+        if (expr.depth == 0) {
+            if (expr.cell) return new ExprNode.WriteCell(expr.slot, value);
+            return new ExprNode.WriteLocal(expr.slot, value);
+        }
+        return new ExprNode.WriteGlobal(globals,
+                globals.slotFor(expr.name.lexeme), expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = build(expr.left);
+        ExprNode right = build(expr.right);
+
+        switch (expr.operator.type) {
+            case PLUS:
+                return new ExprNode.UninitializedAdd(expr.operator, left, right);
+            case MINUS:
+                return new ExprNode.Subtract(expr.operator, left, right);
+            case STAR:
+                return new ExprNode.Multiply(expr.operator, left, right);
+            case SLASH:
+                return new ExprNode.Divide(expr.operator, left, right);
+            case GREATER:
+                return new ExprNode.Greater(expr.operator, left, right);
+            case GREATER_EQUAL:
+                return new ExprNode.GreaterEqual(expr.operator, left, right);
+            case LESS:
+                return new ExprNode.Less(expr.operator, left, right);
+            case LESS_EQUAL:
+                return new ExprNode.LessEqual(expr.operator, left, right);
+            case BANG_EQUAL:
+                return new ExprNode.Equality(expr.operator, left, right, true);
+            case EQUAL_EQUAL:
+                return new ExprNode.Equality(expr.operator, left, right, false);
+        }
+
+        return new ExprNode.Constant(null);
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            return new ExprNode.Invoke(interpreter, expr.paren, build(get.object),
+                    get.name, buildArguments(expr), expr.tailCall);
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            return new ExprNode.SuperInvoke(interpreter, expr.paren, callee.slot,
+                    read(callee.thisDepth, callee.thisSlot, callee.thisCell),
+                    callee.method, buildArguments(expr), expr.tailCall);
+        }
+
+        ExprNode callee = build(expr.callee);
+        return new ExprNode.UninitializedCall(interpreter, expr.paren, callee,
+                buildArguments(expr), expr.tailCall);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(build(expr.object), expr.name);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        return new ExprNode.Logical(expr.operator, build(expr.left), build(expr.right),
+                expr.operator.type == TokenType.OR);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(build(expr.object), expr.name, build(expr.value));
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        return new ExprNode.Super(expr.slot,
+                read(expr.thisDepth, expr.thisSlot, expr.thisCell), expr.method);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return read(expr.depth, expr.slot, expr.cell);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode operand = build(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            return new ExprNode.Negate(expr.operator, operand);
+        }
+        return new ExprNode.Not(operand);
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != -1) return read(expr.depth, expr.slot, expr.cell);
+        return new ExprNode.ReadGlobal(globals,
+                globals.slotFor(expr.name.lexeme), expr.name);
+    }
+
+    private static ExprNode read(int depth, int slot, boolean cell) {
+        if (depth == 1) return new ExprNode.ReadUpvalue(slot);
+        if (cell) return new ExprNode.ReadCell(slot);
+        return new ExprNode.ReadLocal(slot);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.flattened) return new StmtNode.Sequence(build(stmt.statements));
+        return new StmtNode.Block(stmt.frameSize, build(stmt.statements));
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        List<FunctionNode> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.add(new FunctionNode(method, this));
+        }
+        return new StmtNode.Class(globals, stmt, build(stmt.superclass), methods);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        return new StmtNode.Function(globals, stmt, new FunctionNode(stmt, this));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(build(stmt.condition), build(stmt.thenBranch),
+                build(stmt.elseBranch));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        return new StmtNode.Return(build(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode initializer = build(stmt.initializer);
+        if (stmt.slot != -1) {
+            return new StmtNode.DefineLocal(stmt.slot, stmt.cell, initializer);
+        }
+        return new StmtNode.DefineGlobal(globals, stmt.name, initializer);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(interpreter, stmt, build(stmt.condition), build(stmt.body));
+    }
+}
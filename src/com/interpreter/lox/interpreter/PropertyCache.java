@@ -0,0 +1,105 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.util.RuntimeError;
+
+// Inline cache for one property access site: an Expr.Get, an Expr.Set, or
+// the callee of a method call. It remembers, per receiver shape, where the
+// property was found: a field index, or the method it resolved to. Shapes
+// are immutable and belong to a single class, so a hit needs no name
+// lookup at all. Up to MAX_ENTRIES shapes are cached (monomorphic with one,
+// polymorphic beyond that); once full the site is megamorphic and misses
+// fall back to the uncached lookup without being recorded.
+class PropertyCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    // Field index for the entry, or -1 when the entry caches a method.
+    private final int[] indices = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    // For set sites: the shape after the store, which differs from the
+    // entry's shape when the store adds the field.
+    private final Shape[] transitions = new Shape[MAX_ENTRIES];
+    private int count = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                int index = indices[i];
+                if (index != -1) return instance.fields[index];
+                return methods[i].bind(instance);
+            }
+        }
+
+        int index = shape.indexOf(name.lexeme);
+        if (index != -1) {
+            addEntry(shape, index, null, shape);
+            return instance.fields[index];
+        }
+        LoxFunction method = instance.klass.findMethod(name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(name,
+                    "Undefined property '" + name.lexeme + "'.");
+        }
+        addEntry(shape, -1, method, shape);
+        return method.bind(instance);
+    }
+
+    // For method calls: the method that name resolves to on instance, so
+    // the call can pass the receiver straight to it without binding. Returns
+    // null when the property is a field; get() then reads it from the cache.
+    LoxFunction findMethod(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return methods[i];
+        }
+
+        int index = shape.indexOf(name.lexeme);
+        if (index != -1) {
+            addEntry(shape, index, null, shape);
+            return null;
+        }
+        LoxFunction method = instance.klass.findMethod(name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(name,
+                    "Undefined property '" + name.lexeme + "'.");
+        }
+        addEntry(shape, -1, method, shape);
+        return method;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                Shape next = transitions[i];
+                if (next == shape) {
+                    instance.fields[indices[i]] = value;
+                } else {
+                    instance.addField(next, value);
+                }
+                return;
+            }
+        }
+
+        int index = shape.indexOf(name.lexeme);
+        if (index != -1) {
+            instance.fields[index] = value;
+            addEntry(shape, index, null, shape);
+        } else {
+            Shape next = shape.withField(name.lexeme);
+            instance.addField(next, value);
+            addEntry(shape, next.fieldCount - 1, null, next);
+        }
+    }
+
+    private void addEntry(Shape shape, int index, LoxFunction method, Shape next) {
+        if (count == MAX_ENTRIES) return;
+        shapes[count] = shape;
+        indices[count] = index;
+        methods[count] = method;
+        transitions[count] = next;
+        count++;
+    }
+}
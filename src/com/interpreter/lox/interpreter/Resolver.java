@@ -2,21 +2,78 @@ package com.interpreter.lox.interpreter;
 
 import com.interpreter.lox.Lox;
 import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.lexer.TokenType;
 import com.interpreter.lox.parser.Expr;
 import com.interpreter.lox.parser.Stmt;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // A lexical scope. Blocks have no runtime frame of their own: their
+    // variables take the next free slots of the enclosing frame and give
+    // them back when the block ends, since sibling blocks never run at the
+    // same time.
+    private static class Scope {
+        final Scope enclosing;
+        final Frame frame;
+        // Whether each name has finished its initializer.
+        final Map<String, Boolean> defined = new HashMap<>();
+        final Map<String, Variable> variables = new HashMap<>();
+
+        Scope(Scope enclosing, Frame frame) {
+            this.enclosing = enclosing;
+            this.frame = frame;
+        }
+    }
+
+    // A frame at runtime: a function's, the one holding 'super' for the
+    // methods of a subclass, or that of an outermost block in top-level
+    // code, which has no function around it. Closures reach variables of
+    // enclosing frames through upvalues, which they capture when created.
+    private static class Frame {
+        final Frame enclosing;
+        int nextSlot = 0;
+        int size = 0;
+        // Upvalue index of each captured variable, and where the closure
+        // takes it from, in the same order.
+        final Map<Variable, Integer> upvalues = new HashMap<>();
+        final List<Integer> captures = new ArrayList<>();
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        int[] captures() {
+            int[] captures = new int[this.captures.size()];
+            for (int i = 0; i < captures.length; i++) {
+                captures[i] = this.captures.get(i);
+            }
+            return captures;
+        }
+    }
+
+    private static class Variable {
+        final Frame frame;
+        final int slot;
+        // Set once a closure captures it; it then lives in an Upvalue.
+        boolean captured = false;
+
+        Variable(Frame frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+    }
+
+    private Scope current = null;
+    // Whether captured variables need cells is only known at the end, so
+    // the flags are stored into the tree once everything is resolved.
+    private final List<Runnable> fixups = new ArrayList<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    public Resolver() {
     }
     private enum FunctionType {
         NONE,
@@ -34,9 +91,29 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
-        resolve(stmt.statements);
+        if (current == null) {
+            // A top-level block that declares nothing needs no frame, so a
+            // loop body like that allocates nothing per iteration; blocks
+            // nested in it are top-level blocks in turn.
+            if (!declaresVariables(stmt.statements)) {
+                resolveAll(stmt.statements);
+                stmt.flattened = true;
+                return null;
+            }
+            Frame frame = beginFrame();
+            resolveAll(stmt.statements);
+            stmt.flattened = false;
+            stmt.frameSize = frame.size;
+            endScope();
+            return null;
+        }
+
+        int firstSlot = current.frame.nextSlot;
+        beginScope(current.frame);
+        resolveAll(stmt.statements);
+        stmt.flattened = true;
         endScope();
+        current.frame.nextSlot = firstSlot;
         return null;
     }
     @Override
@@ -45,6 +122,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         currentClass = ClassType.CLASS;
         declare(stmt.name);
         define(stmt.name);
+        Variable variable = resolveDeclaration(stmt.name);
+        if (variable != null) {
+            stmt.slot = variable.slot;
+            fixups.add(() -> stmt.cell = variable.captured);
+        }
         if (stmt.superclass != null &&
                 stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
             Lox.error(stmt.superclass.name,
@@ -54,12 +136,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
         }
+        Frame superFrame = null;
         if (stmt.superclass != null) {
-            beginScope();
-            scopes.peek().put("super", true);
+            superFrame = beginFrame();
+            defineSynthetic("super");
         }
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -67,8 +148,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             }
             resolveFunction(method, declaration);
         }
-        endScope();
-        if (stmt.superclass != null) endScope();
+        if (superFrame != null) {
+            stmt.captures = superFrame.captures();
+            endScope();
+        } else {
+            stmt.captures = new int[0];
+        }
         currentClass = enclosingClass;
         return null;
     }
@@ -83,6 +168,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
         define(stmt.name);
+        Variable variable = resolveDeclaration(stmt.name);
+        if (variable != null) {
+            stmt.slot = variable.slot;
+            fixups.add(() -> stmt.cell = variable.captured);
+        }
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -113,6 +203,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                         "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
+
+            // 'return f(...);' leaves nothing to do after the call, so the
+            // callee can take over the caller's place instead of nesting.
+            Expr value = stmt.value;
+            while (value instanceof Expr.Grouping) value = ((Expr.Grouping) value).expression;
+            if (value instanceof Expr.Call) ((Expr.Call) value).tailCall = true;
         }
 
         return null;
@@ -125,6 +221,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        Variable variable = resolveDeclaration(stmt.name);
+        if (variable != null) {
+            stmt.slot = variable.slot;
+            fixups.add(() -> stmt.cell = variable.captured);
+        }
         return null;
     }
 
@@ -138,7 +239,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Variable variable = resolveLocal(expr.name);
+        if (variable != null) {
+            expr.depth = depth(variable);
+            expr.slot = slot(variable);
+            fixups.add(() -> expr.cell = variable.captured);
+        }
         return null;
     }
 
@@ -197,7 +303,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        Variable superclass = resolveLocal(expr.keyword);
+        Variable receiver = resolveLocal(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+        if (superclass != null && receiver != null) {
+            // 'super' is never in the method's own frame.
+            expr.slot = slot(superclass);
+            expr.thisDepth = depth(receiver);
+            expr.thisSlot = slot(receiver);
+            fixups.add(() -> expr.thisCell = receiver.captured);
+        }
         return null;
     }
     @Override
@@ -206,7 +320,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        Variable variable = resolveLocal(expr.keyword);
+        if (variable != null) {
+            expr.depth = depth(variable);
+            expr.slot = slot(variable);
+            fixups.add(() -> expr.cell = variable.captured);
+        }
         return null;
     }
 
@@ -218,13 +337,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        if (current != null &&
+                current.defined.get(expr.name.lexeme) == Boolean.FALSE) {
             Lox.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        Variable variable = resolveLocal(expr.name);
+        if (variable != null) {
+            expr.depth = depth(variable);
+            expr.slot = slot(variable);
+            fixups.add(() -> expr.cell = variable.captured);
+        }
         return null;
     }
 
@@ -233,11 +357,29 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     public void resolve(List<Stmt> statements) {
+        resolveAll(statements);
+        for (Runnable fixup : fixups) {
+            fixup.run();
+        }
+        fixups.clear();
+    }
+
+    private void resolveAll(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
         }
     }
 
+    private static boolean declaresVariables(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+                    || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void resolve(Expr expr) {
         expr.accept(this);
     }
@@ -245,45 +387,120 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
-        beginScope();
+        Frame frame = beginFrame();
+        // A method's receiver is slot 0 of its own frame.
+        List<Variable> parameters = new ArrayList<>();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            parameters.add(defineSynthetic("this"));
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
+            parameters.add(current.variables.get(param.lexeme));
         }
-        resolve(function.body);
+        resolveAll(function.body);
+        function.frameSize = frame.size;
+        function.captures = frame.captures();
+        fixups.add(() -> {
+            List<Integer> cells = new ArrayList<>();
+            for (Variable parameter : parameters) {
+                if (parameter.captured && !cells.contains(parameter.slot)) {
+                    cells.add(parameter.slot);
+                }
+            }
+            function.cellParameters = cells.stream().mapToInt(Integer::intValue).toArray();
+        });
         endScope();
         currentFunction = enclosingFunction;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    private Frame beginFrame() {
+        Frame frame = new Frame(current == null ? null : current.frame);
+        beginScope(frame);
+        return frame;
+    }
+
+    private void beginScope(Frame frame) {
+        current = new Scope(current, frame);
     }
 
     private void endScope() {
-        scopes.pop();
+        current = current.enclosing;
     }
 
     private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+        if (current == null) return;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        if (current.defined.containsKey(name.lexeme)) {
             Lox.error(name, "Already a variable with this name in this scope.");
+            return;
         }
-        scope.put(name.lexeme, false);
+        current.defined.put(name.lexeme, false);
+        current.variables.put(name.lexeme, newVariable());
+    }
+
+    private Variable defineSynthetic(String name) {
+        Variable variable = newVariable();
+        current.defined.put(name, true);
+        current.variables.put(name, variable);
+        return variable;
+    }
+
+    private Variable newVariable() {
+        Frame frame = current.frame;
+        Variable variable = new Variable(frame, frame.nextSlot++);
+        frame.size = Math.max(frame.size, frame.nextSlot);
+        return variable;
+    }
+
+    // The variable a declaration just declared, or null for a global.
+    private Variable resolveDeclaration(Token name) {
+        if (current == null) return null;
+        return current.variables.get(name.lexeme);
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        if (current == null) return;
+        current.defined.put(name.lexeme, true);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
+    // The innermost binding of name, or null when the name is not bound
+    // locally and so is a global.
+    private Variable resolveLocal(Token name) {
+        for (Scope scope = current; scope != null; scope = scope.enclosing) {
+            Variable variable = scope.variables.get(name.lexeme);
+            if (variable != null) return variable;
+        }
+        return null;
+    }
+
+    // 0 for a variable of the running frame, 1 for one reached through an
+    // upvalue.
+    private int depth(Variable variable) {
+        return variable.frame == current.frame ? 0 : 1;
+    }
+
+    private int slot(Variable variable) {
+        if (variable.frame == current.frame) return variable.slot;
+        return upvalue(current.frame, variable);
+    }
+
+    // The index of the upvalue through which frame reaches the variable,
+    // adding it, and the ones of the frames in between, if needed.
+    private static int upvalue(Frame frame, Variable variable) {
+        Integer index = frame.upvalues.get(variable);
+        if (index != null) return index;
+
+        int capture;
+        if (variable.frame == frame.enclosing) {
+            variable.captured = true;
+            capture = variable.slot;
+        } else {
+            capture = -1 - upvalue(frame.enclosing, variable);
         }
+        index = frame.captures.size();
+        frame.upvalues.put(variable, index);
+        frame.captures.add(capture);
+        return index;
     }
-}
\ No newline at end of file
+}
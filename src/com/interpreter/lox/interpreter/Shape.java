@@ -0,0 +1,40 @@
+package com.interpreter.lox.interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Field layout shared by every instance that had the same fields added in
+// the same order (a "hidden class"). Instances store only an Object[] of
+// values; the shape maps each field name to its index in that array.
+// Shapes are immutable: adding a field moves the instance to a child shape,
+// and the transition is cached so instances built alike end up sharing it.
+class Shape {
+    private final Map<String, Integer> indices;
+    private final Map<String, Shape> transitions = new HashMap<>();
+    final int fieldCount;
+
+    Shape() {
+        this.indices = new HashMap<>();
+        this.fieldCount = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        this.indices = new HashMap<>(parent.indices);
+        this.indices.put(name, parent.fieldCount);
+        this.fieldCount = parent.fieldCount + 1;
+    }
+
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
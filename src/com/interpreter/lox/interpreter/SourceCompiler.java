@@ -0,0 +1,78 @@
+package com.interpreter.lox.interpreter;
+
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs javac in memory over generated classes of this package, against the
+// interpreter's own classes. Shared by the JIT and the ahead-of-time
+// compiler.
+final class SourceCompiler {
+    private static final String PACKAGE = "com/interpreter/lox/interpreter/";
+
+    private SourceCompiler() {
+    }
+
+    // Maps each class name to its source; returns the class files by
+    // binary name, or null if javac reported errors.
+    static Map<String, byte[]> compile(JavaCompiler javac, Map<String, String> sources,
+                                       DiagnosticListener<JavaFileObject> diagnostics) {
+        List<JavaFileObject> files = new ArrayList<>();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            String source = entry.getValue();
+            files.add(new SimpleJavaFileObject(
+                    URI.create("string:///" + PACKAGE + entry.getKey() + ".java"),
+                    JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            });
+        }
+
+        Map<String, ByteArrayOutputStream> classes = new LinkedHashMap<>();
+        JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(
+                javac.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name,
+                                                       JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                classes.put(name, bytes);
+                return new SimpleJavaFileObject(
+                        URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+
+        List<String> options = List.of("-classpath", System.getProperty("java.class.path"),
+                "-nowarn", "-g:none");
+        Writer silent = Writer.nullWriter();
+        if (diagnostics == null) diagnostics = diagnostic -> { };
+        if (!javac.getTask(silent, manager, diagnostics, options, null, files).call()) {
+            return null;
+        }
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : classes.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,286 @@
+package com.interpreter.lox.interpreter;
+
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.parser.Stmt;
+import com.interpreter.lox.util.RuntimeError;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+abstract class StmtNode extends Node {
+    // What execute() returns when a statement completes normally. Anything
+    // else is the value of a 'return', handed up to the function body.
+    static final Object NORMAL = new Object();
+
+    abstract Object execute(Environment environment);
+
+    static Object executeAll(StmtNode[] statements, Environment environment) {
+        for (StmtNode statement : statements) {
+            Object result = statement.execute(environment);
+            if (result != NORMAL) return result;
+        }
+        return NORMAL;
+    }
+
+    // Base for statements that own one expression.
+    abstract static class WithExpression extends StmtNode {
+        ExprNode expression;
+
+        WithExpression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (child != expression) super.replaceChild(child, replacement);
+            expression = (ExprNode) replacement;
+        }
+    }
+
+    static class Expression extends WithExpression {
+        Expression(ExprNode expression) {
+            super(expression);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            expression.execute(environment);
+            return NORMAL;
+        }
+    }
+
+    static class Print extends WithExpression {
+        Print(ExprNode expression) {
+            super(expression);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = expression.execute(environment);
+            System.out.println(Interpreter.stringify(value));
+            return NORMAL;
+        }
+    }
+
+    static class Return extends WithExpression {
+        Return(ExprNode value) {
+            super(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (expression == null) return null;
+            return expression.execute(environment);
+        }
+    }
+
+    // 'var' in a local scope. A captured variable gets a fresh cell each
+    // time its declaration runs.
+    static class DefineLocal extends WithExpression {
+        private final int slot;
+        private final boolean cell;
+
+        DefineLocal(int slot, boolean cell, ExprNode initializer) {
+            super(initializer);
+            this.slot = slot;
+            this.cell = cell;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = null;
+            if (expression != null) value = expression.execute(environment);
+            environment.define(slot, cell ? new Upvalue(value) : value);
+            return NORMAL;
+        }
+    }
+
+    static class DefineGlobal extends WithExpression {
+        private final GlobalTable globals;
+        private final Token name;
+
+        DefineGlobal(GlobalTable globals, Token name, ExprNode initializer) {
+            super(initializer);
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = null;
+            if (expression != null) value = expression.execute(environment);
+            globals.define(name.lexeme, value);
+            return NORMAL;
+        }
+    }
+
+    static class Block extends StmtNode {
+        private final int frameSize;
+        private final StmtNode[] statements;
+
+        Block(int frameSize, StmtNode[] statements) {
+            this.frameSize = frameSize;
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeAll(statements, new Environment(frameSize, null));
+        }
+    }
+
+    // A flattened block, whose variables live in the enclosing frame.
+    static class Sequence extends StmtNode {
+        private final StmtNode[] statements;
+
+        Sequence(StmtNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeAll(statements, environment);
+        }
+    }
+
+    static class If extends WithExpression {
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            super(condition);
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (expression.executeCondition(environment)) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return NORMAL;
+        }
+    }
+
+    static class While extends WithExpression {
+        private final Interpreter interpreter;
+        private final Stmt.While loop;
+        private final StmtNode body;
+
+        While(Interpreter interpreter, Stmt.While loop, ExprNode condition, StmtNode body) {
+            super(condition);
+            this.interpreter = interpreter;
+            this.loop = loop;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            FunctionProfile profile = interpreter.activeProfile;
+            JitCompiler jit = interpreter.jit;
+            LoopProfile loopProfile = jit != null ? jit.profile(loop) : null;
+            while (expression.executeCondition(environment)) {
+                Object result = body.execute(environment);
+                if (result != NORMAL) return result;
+                if (profile != null) profile.backEdges++;
+                if (loopProfile != null) {
+                    CompiledLoop compiled = jit.backEdge(loop, loopProfile, environment);
+                    if (compiled != null) {
+                        result = compiled.run(interpreter, environment);
+                        if (result != CompiledLoop.DEOPTIMIZE) return result;
+                        jit.deoptimize(loopProfile);
+                    }
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Function extends StmtNode {
+        private final GlobalTable globals;
+        private final Stmt.Function declaration;
+        private final FunctionNode body;
+
+        Function(GlobalTable globals, Stmt.Function declaration, FunctionNode body) {
+            this.globals = globals;
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            int slot = declaration.slot;
+            if (declaration.cell) environment.define(slot, new Upvalue(null));
+            LoxFunction function = new LoxFunction(declaration,
+                    environment.capture(declaration.captures), false, false, null, body);
+            if (declaration.cell) {
+                environment.assignCell(slot, function);
+            } else if (slot != -1) {
+                environment.define(slot, function);
+            } else {
+                globals.define(declaration.name.lexeme, function);
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Class extends WithExpression {
+        private final GlobalTable globals;
+        private final Stmt.Class declaration;
+        private final List<FunctionNode> methods;
+
+        Class(GlobalTable globals, Stmt.Class declaration, ExprNode superclass,
+              List<FunctionNode> methods) {
+            super(superclass);
+            this.globals = globals;
+            this.declaration = declaration;
+            this.methods = methods;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object superclass = null;
+            if (expression != null) {
+                superclass = expression.execute(environment);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(declaration.superclass.name,
+                            "Superclass must be a class.");
+                }
+            }
+            int slot = declaration.slot;
+            if (slot != -1) {
+                environment.define(slot, declaration.cell ? new Upvalue(null) : null);
+            } else {
+                globals.define(declaration.name.lexeme, null);
+            }
+
+            Environment scope = environment;
+            Map<String, LoxFunction> table = new HashMap<>();
+            if (superclass != null) {
+                scope = new Environment(1, environment.capture(declaration.captures));
+                scope.define(0, new Upvalue(superclass));
+                table.putAll(((LoxClass) superclass).methods);
+            }
+            for (int i = 0; i < methods.size(); i++) {
+                Stmt.Function method = declaration.methods.get(i);
+                table.put(method.name.lexeme, new LoxFunction(method,
+                        scope.capture(method.captures), method.name.lexeme.equals("init"),
+                        true, null, methods.get(i)));
+            }
+
+            LoxClass klass = new LoxClass(declaration.name.lexeme,
+                    (LoxClass) superclass, table);
+            if (declaration.cell) {
+                environment.assignCell(slot, klass);
+            } else if (slot != -1) {
+                environment.define(slot, klass);
+            } else {
+                globals.define(declaration.name.lexeme, klass);
+            }
+            return NORMAL;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.interpreter.lox.interpreter;
+
+// A call in tail position that has not run yet. The call site returns it
+// as the value of its function instead of making the call, and
+// LoxFunction.call() makes it once that function's frame is gone, so
+// tail calls run in constant stack.
+final class TailCall {
+    final LoxFunction function;
+    // The callee's frame, holding the receiver and the arguments.
+    final Environment frame;
+
+    TailCall(LoxFunction function, Environment frame) {
+        this.function = function;
+        this.frame = frame;
+    }
+}
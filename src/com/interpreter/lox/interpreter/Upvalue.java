@@ -0,0 +1,12 @@
+package com.interpreter.lox.interpreter;
+
+// A local variable that a closure captured. The frame slot holds the box
+// instead of the value, and every closure that captured the variable holds
+// the same box, so assignments on either side are seen by the other.
+public final class Upvalue {
+    public Object value;
+
+    public Upvalue(Object value) {
+        this.value = value;
+    }
+}
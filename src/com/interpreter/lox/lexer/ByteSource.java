@@ -0,0 +1,63 @@
+package com.interpreter.lox.lexer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A UTF-8 source file seen as a CharSequence of its bytes, so the scanner
+// can read a memory-mapped file in place instead of decoding it all into a
+// String first. Everything Lox gives meaning to is ASCII, one byte per
+// char; other characters only appear as bytes of 0x80 and up, inside
+// string literals and comments. Positions are byte offsets, and toString()
+// decodes a slice as UTF-8, which is how lexemes and string literals are
+// taken from it.
+public final class ByteSource implements CharSequence {
+    private final ByteBuffer bytes;
+
+    private ByteSource(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    // Maps the file read-only; the mapping lasts as long as the source is
+    // reachable.
+    public static ByteSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to load.");
+            }
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // A byte order mark is not part of the program.
+            if (size >= 3 && (bytes.get(0) & 0xff) == 0xef
+                    && (bytes.get(1) & 0xff) == 0xbb && (bytes.get(2) & 0xff) == 0xbf) {
+                bytes = bytes.slice(3, (int) size - 3);
+            }
+            return new ByteSource(bytes);
+        }
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new ByteSource(bytes.slice(start, end - start));
+    }
+
+    @Override
+    public String toString() {
+        byte[] text = new byte[bytes.limit()];
+        bytes.get(0, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
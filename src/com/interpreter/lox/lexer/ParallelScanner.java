@@ -0,0 +1,84 @@
+package com.interpreter.lox.lexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static com.interpreter.lox.lexer.TokenType.EOF;
+
+// Scans a large source on the common ForkJoinPool. The source is cut into
+// chunks just after a newline, where no token can be split, and all of
+// them are scanned at once on the guess that each starts outside any
+// string or block comment, with lines counted from 1.
+//
+// The chunks are then joined in order. Where the chunk before ended inside
+// a string or comment, the guess was wrong, and the chunk is scanned again
+// from where that string or comment began; this is rare, and costs one
+// chunk scanned twice. Every other chunk only has its lines moved down by
+// the newlines before it. Errors are held by each chunk and reported from
+// the scans that were kept, so they come out in source order, as they
+// would from a single Scanner.
+final class ParallelScanner {
+    // Sources smaller than this are not worth splitting.
+    static final int THRESHOLD = 1 << 20;
+    private static final int MIN_CHUNK = 1 << 18;
+
+    private ParallelScanner() {}
+
+    static boolean worthwhile(CharSequence source) {
+        return source.length() >= THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    static TokenBuffer scan(CharSequence source) {
+        int length = source.length();
+        int[] bounds = split(source, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4,
+                length / MIN_CHUNK));
+        int chunks = bounds.length - 1;
+
+        List<ForkJoinTask<Scanner>> scans = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            Scanner scanner = new Scanner(source, bounds[i], bounds[i + 1], 1,
+                    bounds[i + 1] < length);
+            scans.add(ForkJoinPool.commonPool().submit(scanner::scanChunk));
+        }
+
+        TokenBuffer tokens = new TokenBuffer(source);
+        // The line the next chunk starts on.
+        int line = 1;
+        Scanner previous = null;
+        int previousOffset = 0;
+        for (int i = 0; i < chunks; i++) {
+            Scanner chunk = scans.get(i).join();
+            int lineOffset = line - 1;
+            if (previous != null && previous.openStart >= 0) {
+                chunk = new Scanner(source, previous.openStart, bounds[i + 1],
+                        previous.openLine + previousOffset, bounds[i + 1] < length).scanChunk();
+                lineOffset = 0;
+            }
+            chunk.reportErrors(lineOffset);
+            tokens.addAll(chunk.tokens, lineOffset);
+            line = chunk.line + lineOffset;
+            previous = chunk;
+            previousOffset = lineOffset;
+        }
+        tokens.add(EOF, length, 0, line);
+        return tokens;
+    }
+
+    // Offsets that cut the source into about count chunks, each but the
+    // last ending with a newline.
+    private static int[] split(CharSequence source, int count) {
+        int length = source.length();
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < count; i++) {
+            int at = Math.max((int) ((long) length * i / count), bounds.get(bounds.size() - 1));
+            while (at < length && source.charAt(at) != '\n') at++;
+            if (at + 1 >= length) break;
+            bounds.add(at + 1);
+        }
+        bounds.add(length);
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
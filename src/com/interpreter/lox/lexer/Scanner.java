@@ -5,56 +5,101 @@ import com.interpreter.lox.lexer.Token;
 import com.interpreter.lox.lexer.TokenType;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.interpreter.lox.lexer.TokenType.*;
 
 public class Scanner {
-    private static final Map<String, TokenType> keywords;
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // A String, or the bytes of a file as a ByteSource.
+    private final CharSequence source;
+    final TokenBuffer tokens;
     private int start = 0;
     private int current = 0;
-    private int line = 1;
+    int line = 1;
+    // Where scanning stops: the end of the source, or of the chunk a
+    // ParallelScanner gave this scanner.
+    private final int limit;
+    // Set for a chunk that more source follows. A string or block comment
+    // still open at its limit is then not an error, but is recorded in
+    // openStart and openLine for the next chunk to carry on.
+    private final boolean partial;
+    int openStart = -1;
+    int openLine;
+    // A chunk's errors, held until it is known that the chunk was scanned
+    // from the right state; null to report errors as they are found.
+    private List<ScanError> errors;
 
-    public Scanner(String source) {
+    public Scanner(CharSequence source) {
         this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.limit = source.length();
+        this.partial = false;
     }
 
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
-
-    public List<Token> scanTokens() {
+    // Scans source[from, to), counting lines from line.
+    Scanner(CharSequence source, int from, int to, int line, boolean partial) {
+        this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.current = from;
+        this.line = line;
+        this.limit = to;
+        this.partial = partial;
+        this.errors = new ArrayList<>();
+    }
+
+    public TokenBuffer scanTokens() {
+        if (ParallelScanner.worthwhile(source)) {
+            return ParallelScanner.scan(source);
+        }
         while(!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
         return tokens;
     }
 
+    // A buffer that scans tokens only as the parser reaches them, for
+    // running a source while it is still being read.
+    public TokenBuffer streamTokens() {
+        tokens.scanner = this;
+        return tokens;
+    }
+
+    // Scans the next token into the buffer, or the EOF token at the end.
+    void scanNext() {
+        int end = tokens.end();
+        while (tokens.end() == end) {
+            if (isAtEnd()) {
+                tokens.add(EOF, current, 0, line);
+                tokens.scanner = null;
+                return;
+            }
+            start = current;
+            scanToken();
+        }
+    }
+
+    // Scans a chunk, leaving the EOF token to whoever joins the chunks.
+    Scanner scanChunk() {
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        return this;
+    }
+
+    // Reports the errors a chunk held back, on the lines they are on once
+    // lineOffset is added.
+    void reportErrors(int lineOffset) {
+        for (ScanError error : errors) {
+            Lox.error(error.line + lineOffset, error.message);
+        }
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= limit;
     }
 
     private void scanToken() {
@@ -96,17 +141,20 @@ public class Scanner {
                         advance();
                     }
                 } else if(match('*')) {
+                    int startLine = line;
                     while(!(peek() == '*') && !isAtEnd()) {
                         if(peek() == '\n') line++;
                         advance();
                     }
                     if(isAtEnd()) {
-                        Lox.error(line, "Unterminated Comment Blog");
+                        if (partial) open(startLine);
+                        else error(line, "Unterminated Comment Blog");
                         return;
                     }
                     advance();
                     if(peek() != '/' || isAtEnd()) {
-                        Lox.error(line ,"Unterminated Comment blog");
+                        if (partial && isAtEnd()) open(startLine);
+                        else error(line ,"Unterminated Comment blog");
                         return;
                     }
                     advance();
@@ -131,16 +179,69 @@ public class Scanner {
                     identifier();
                 }
                 else
-                    Lox.error(line, "Unexpected character: " + c); break;
+                    unexpected(c);
+                break;
         }
     }
 
+    // Reports a stray character. In a ByteSource one that is not ASCII
+    // spans several bytes; they make up a single error.
+    private void unexpected(char c) {
+        if (c >= 0xc0) {
+            while (peek() >= 0x80 && peek() < 0xc0) advance();
+        }
+        String text = c < 0x80 ? String.valueOf(c)
+                : source.subSequence(start, current).toString();
+        error(line, "Unexpected character: " + text);
+    }
+
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(identifierType());
+    }
+
+    // Keywords are recognized in place, by their first letters, so that
+    // identifiers need no substring to look up.
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     private void number() {
@@ -150,30 +251,40 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start,current)));
+        addToken(NUMBER);
     }
 
     private void string() {
+        int startLine = line;
         while(peek() != '"' && !isAtEnd()) {
             if(peek() == '\n') line++;
             advance();
         }
         if(isAtEnd()) {
-            Lox.error(line, "Unterminated String.");
+            if (partial) open(startLine);
+            else error(line, "Unterminated String.");
             return;
         }
 
         advance();
-        String val = source.substring(start + 1, current - 1);
-        addToken(STRING, val);
+        addToken(STRING);
     }
 
+    // The lexeme and any literal value are read back from the source by
+    // TokenBuffer when the parser needs them.
     private void addToken(TokenType type) {
-        addToken(type, null);
+        tokens.add(type, start, current - start, line);
+    }
+
+    // A string or comment runs past the end of this chunk.
+    private void open(int startLine) {
+        openStart = start;
+        openLine = startLine;
     }
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+
+    private void error(int line, String message) {
+        if (errors == null) Lox.error(line, message);
+        else errors.add(new ScanError(line, message));
     }
 
     private boolean isDigit(char c) {
@@ -194,7 +305,7 @@ public class Scanner {
         return source.charAt(current);
     }
     private char peekNext() {
-        if(current + 1 >= source.length()) return '\0';
+        if(current + 1 >= limit) return '\0';
         return source.charAt(current + 1);
     }
 
@@ -204,4 +315,14 @@ public class Scanner {
         current++;
         return true;
     }
+
+    private static final class ScanError {
+        final int line;
+        final String message;
+
+        ScanError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
 }
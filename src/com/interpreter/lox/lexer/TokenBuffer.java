@@ -0,0 +1,125 @@
+package com.interpreter.lox.lexer;
+
+import java.util.Arrays;
+
+// The tokens of a source, kept as parallel arrays of type, start offset,
+// length and line instead of one Token object each. Lexemes and literals
+// are cut from the source only when the parser asks for a token it keeps,
+// so punctuation and keywords never allocate anything.
+//
+// Tokens are addressed by their index in the whole source. A streaming
+// buffer is filled by its Scanner as the parser reaches the end of it, and
+// drops the tokens the parser has released, so it only ever holds a window
+// of the source's tokens.
+public final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    // Scans more tokens on demand; null once the source has been scanned.
+    Scanner scanner;
+    private int[] types = new int[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int[] lines = new int[256];
+    // Index of the token held in position 0 of the arrays.
+    private int first = 0;
+    private int count = 0;
+
+    TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) grow(count * 2);
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    // Appends the tokens of a chunk scanned by itself, moving them down by
+    // the lines that came before the chunk.
+    void addAll(TokenBuffer chunk, int lineOffset) {
+        if (count + chunk.count > types.length) {
+            grow(Math.max(count + chunk.count, count * 2));
+        }
+        System.arraycopy(chunk.types, 0, types, count, chunk.count);
+        System.arraycopy(chunk.starts, 0, starts, count, chunk.count);
+        System.arraycopy(chunk.lengths, 0, lengths, count, chunk.count);
+        for (int i = 0; i < chunk.count; i++) {
+            lines[count + i] = chunk.lines[i] + lineOffset;
+        }
+        count += chunk.count;
+    }
+
+    private void grow(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+
+    // The index after the last token scanned so far.
+    public int end() {
+        return first + count;
+    }
+
+    // Position of a token in the arrays, scanning up to it if needed.
+    private int position(int index) {
+        while (index >= first + count && scanner != null) {
+            scanner.scanNext();
+        }
+        return index - first;
+    }
+
+    // Drops the tokens before index, which will not be asked for again.
+    public void release(int index) {
+        int dropped = Math.min(index - first, count);
+        if (dropped <= 0) return;
+        count -= dropped;
+        System.arraycopy(types, dropped, types, 0, count);
+        System.arraycopy(starts, dropped, starts, 0, count);
+        System.arraycopy(lengths, dropped, lengths, 0, count);
+        System.arraycopy(lines, dropped, lines, 0, count);
+        first += dropped;
+    }
+
+    // position() may scan and grow the arrays, so it runs before they are
+    // read.
+    public TokenType type(int index) {
+        int position = position(index);
+        return TYPES[types[position]];
+    }
+
+    public int line(int index) {
+        int position = position(index);
+        return lines[position];
+    }
+
+    public String lexeme(int index) {
+        int position = position(index);
+        int start = starts[position];
+        return source.subSequence(start, start + lengths[position]).toString();
+    }
+
+    // The value of a NUMBER or STRING token, null for anything else.
+    public Object literal(int index) {
+        int position = position(index);
+        int start = starts[position];
+        int end = start + lengths[position];
+        switch (TYPES[types[position]]) {
+            case NUMBER:
+                return Double.parseDouble(source.subSequence(start, end).toString());
+            case STRING:
+                return source.subSequence(start + 1, end - 1).toString();
+            default:
+                return null;
+        }
+    }
+
+    // Materializes the token at index for the AST or an error message.
+    public Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), line(index));
+    }
+}
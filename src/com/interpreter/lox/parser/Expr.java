@@ -27,6 +27,9 @@ public abstract class Expr {
 
         public final Token name;
         public final  Expr value;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean cell;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -68,6 +71,8 @@ public abstract class Expr {
         public final Expr callee;
         public final  Token paren;
         public final  List<Expr> arguments;
+        public Object cache;
+        public boolean tailCall;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -83,6 +88,7 @@ public abstract class Expr {
 
         public final Expr object;
         public final Token name;
+        public Object cache;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -144,6 +150,7 @@ public abstract class Expr {
         public final Expr object;
         public final  Token name;
         public final  Expr value;
+        public Object cache;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -158,6 +165,10 @@ public abstract class Expr {
 
         public final  Token keyword;
         public final  Token method;
+        public int slot = -1;
+        public int thisDepth = -1;
+        public int thisSlot = -1;
+        public boolean thisCell;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -170,6 +181,9 @@ public abstract class Expr {
         }
 
         public final Token keyword;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean cell;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -196,6 +210,9 @@ public abstract class Expr {
         }
 
         public final Token name;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean cell;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
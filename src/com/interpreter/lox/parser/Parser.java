@@ -2,6 +2,7 @@ package com.interpreter.lox.parser;
 
 import com.interpreter.lox.Lox;
 import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.lexer.TokenBuffer;
 import com.interpreter.lox.lexer.TokenType;
 
 import java.util.ArrayList;
@@ -12,13 +13,37 @@ import static com.interpreter.lox.lexer.TokenType.*;
 
 public class Parser {
     private static class ParseError extends RuntimeException{}
-    private final List<Token> tokens;
+    // Token objects are only materialized for the tokens the AST keeps;
+    // everything else is matched by type straight from the buffer.
+    private final TokenBuffer tokens;
     private int current = 0;
+    // Where parsing stops as if at EOF, for parsing one run of top-level
+    // declarations on its own.
+    private final int end;
 
-    public Parser(List<Token> tokens) {
+    public Parser(TokenBuffer tokens) {
+        this(tokens, 0, Integer.MAX_VALUE);
+    }
+
+    // Parses the tokens from index from up to end.
+    public Parser(TokenBuffer tokens, int from, int end) {
         this.tokens = tokens;
+        this.current = from;
+        this.end = end;
+    }
+
+
+    public boolean hasNext() {
+        return !isAtEnd();
     }
 
+    // Parses one top-level declaration, null if it had a syntax error.
+    // The tokens of earlier declarations are released first, so parsing a
+    // streamed source holds no more of it than the current declaration.
+    public Stmt nextDeclaration() {
+        if (current > 0) tokens.release(current - 1);
+        return declaration();
+    }
 
     public List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
@@ -47,7 +72,8 @@ public class Parser {
         }
     }
     private Stmt classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect class name.");
+        consume(IDENTIFIER, "Expect class name.");
+        Token name = previous();
         Expr.Variable superclass = null;
         if (match(LESS)) {
             consume(IDENTIFIER, "Expect superclass name.");
@@ -66,7 +92,8 @@ public class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expected " + kind + " name.");
+        consume(IDENTIFIER, "Expected " + kind + " name.");
+        Token name = previous();
         consume(LEFT_PAREN, "Expected '(' after " + kind + " name.");
         List<Token> params = new ArrayList<>();
         if(!check(RIGHT_PAREN)) {
@@ -74,7 +101,8 @@ public class Parser {
                 if(params.size() >= 255) {
                     error(peek(), "Can't have more than 255 parameters");
                 }
-                params.add(consume(IDENTIFIER, "Expected parameter name."));
+                consume(IDENTIFIER, "Expected parameter name.");
+                params.add(previous());
             }while (match(COMMA));
 
         }
@@ -86,7 +114,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expected variable name.");
+        consume(IDENTIFIER, "Expected variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -219,7 +248,7 @@ public class Parser {
         Expr expr = or();
 
         if (match(EQUAL)) {
-            Token equals = previous();
+            int equals = current - 1;
             Expr value = assignment();
 
             if(expr instanceof Expr.Variable) {
@@ -230,7 +259,7 @@ public class Parser {
                 return new Expr.Set(get.object, get.name, value);
             }
 
-            error(equals, "Invalid assignment target.");
+            error(tokens.token(equals), "Invalid assignment target.");
         }
         return expr;
     }
@@ -334,9 +363,8 @@ public class Parser {
             if(match(LEFT_PAREN)) {
                 expr = finishCall(expr);
             } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER,
-                        "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
+                consume(IDENTIFIER, "Expect property name after '.'.");
+                expr = new Expr.Get(expr, previous());
             } else {
                 break;
             }
@@ -357,9 +385,9 @@ public class Parser {
             }while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
 
-        return new Expr.Call(callee, paren, arguments);
+        return new Expr.Call(callee, previous(), arguments);
     }
 
     private Expr primary() {
@@ -367,7 +395,7 @@ public class Parser {
         if(match(TRUE)) return new Expr.Literal(TRUE);
         if(match(NIL)) return new Expr.Literal(NIL);
         if(match(NUMBER, STRING)) {
-            return  new Expr.Literal(previous().literal);
+            return  new Expr.Literal(tokens.literal(current - 1));
         }
         if(match(LEFT_PAREN)) {
             Expr expr = expression();
@@ -377,9 +405,8 @@ public class Parser {
         if (match(SUPER)) {
             Token keyword = previous();
             consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENTIFIER,
-                    "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
+            consume(IDENTIFIER, "Expect superclass method name.");
+            return new Expr.Super(keyword, previous());
         }
         if (match(THIS)) return new Expr.This(previous());
         if(match(IDENTIFIER)) {
@@ -389,8 +416,11 @@ public class Parser {
         throw error(peek(), "Expect expression.");
     }
 
-    private Token consume(TokenType type, String message) {
-        if(check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if(check(type)) {
+            advance();
+            return;
+        }
 
         throw  error(peek(), message);
     }
@@ -403,9 +433,9 @@ public class Parser {
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -430,26 +460,25 @@ public class Parser {
         return false;
     }
 
-    private Token advance() {
+    private void advance() {
         if(!isAtEnd()) current++;
-        return previous();
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
 
     private boolean check(TokenType type) {
         if(isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return current >= end || tokens.type(current) == EOF;
     }
 }
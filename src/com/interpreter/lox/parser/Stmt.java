@@ -22,6 +22,8 @@ public abstract class Stmt {
         }
 
         public final List<Stmt> statements;
+        public int frameSize;
+        public boolean flattened;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -39,6 +41,9 @@ public abstract class Stmt {
         public final Token name;
         public final Expr.Variable superclass;
         public final List<Stmt.Function> methods;
+        public int slot = -1;
+        public boolean cell;
+        public int[] captures;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -67,6 +72,11 @@ public abstract class Stmt {
         public final Token name;
         public final  List<Token> params;
         public final  List<Stmt> body;
+        public int slot = -1;
+        public int frameSize;
+        public boolean cell;
+        public int[] captures;
+        public int[] cellParameters;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
@@ -123,6 +133,8 @@ public abstract class Stmt {
 
         public final Token name;
         public final  Expr initializer;
+        public int slot = -1;
+        public boolean cell;
 
         @Override
         public <R> R accept(Visitor<R> visitor) {
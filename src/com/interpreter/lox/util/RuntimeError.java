@@ -4,9 +4,17 @@ import com.interpreter.lox.lexer.Token;
 
 public class RuntimeError extends RuntimeException{
     public final Token token;
+    public final int line;
 
     public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    public RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 }
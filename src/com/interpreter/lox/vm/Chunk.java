@@ -0,0 +1,49 @@
+package com.interpreter.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compiled function body: the bytecode, the source line of every byte and
+// the constant pool the instructions index into.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[0];
+    private final List<Object> constantPool = new ArrayList<>();
+    // Index of every interned constant in the pool.
+    private final Map<Object, Integer> interned = new HashMap<>();
+
+    void write(byte value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = value;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        // Strings and numbers are interned so that repeated names and
+        // literals share a single pool entry.
+        if (value instanceof String || value instanceof Double) {
+            Integer index = interned.putIfAbsent(value, constantPool.size());
+            if (index != null) return index;
+        }
+        constantPool.add(value);
+        return constantPool.size() - 1;
+    }
+
+    // Trims the code to its final size and freezes the constant pool into
+    // an array for the dispatch loop.
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantPool.toArray();
+        interned.clear();
+    }
+}
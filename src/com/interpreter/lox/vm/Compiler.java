@@ -0,0 +1,605 @@
+package com.interpreter.lox.vm;
+
+import com.interpreter.lox.Lox;
+import com.interpreter.lox.lexer.Token;
+import com.interpreter.lox.lexer.TokenType;
+import com.interpreter.lox.parser.Expr;
+import com.interpreter.lox.parser.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.interpreter.lox.vm.OpCode.*;
+
+// Translates a resolved syntax tree into bytecode for the VM. Static errors
+// have already been reported by the Resolver, so this pass only has to work
+// out stack slots, upvalues and jump targets.
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 1 << 16;
+    private static final int MAX_UPVALUES = 256;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // Per-function compilation state; one is pushed for every function
+    // body being compiled.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        // Set once the chunk has run out of constants, which is reported
+        // only the first time.
+        boolean tooManyConstants = false;
+        // Likewise for running out of local slots.
+        boolean tooManyLocals = false;
+
+        FunctionState(FunctionState enclosing, FunctionType type, String name) {
+            this.enclosing = enclosing;
+            this.type = type;
+            this.function = new ObjFunction(name);
+            // Slot zero holds the callee, or the receiver inside methods.
+            locals.add(new Local(type == FunctionType.FUNCTION ||
+                    type == FunctionType.SCRIPT ? "" : "this", 0));
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private FunctionState current;
+    private ClassState currentClass;
+    private int line = 1;
+
+    public ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, FunctionType.SCRIPT, null);
+        currentClass = null;
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        emitOp(OP_CLASS);
+        emitShort(nameConstant);
+        defineVariable(nameConstant);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal("super");
+            markInitialized();
+            namedVariable(stmt.name, false);
+            line = stmt.superclass.name.line;
+            emitOp(OP_INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(stmt.name, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init") ?
+                    FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            line = method.name.line;
+            emitOp(OP_METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        emitOp(OP_POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        int global = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        // A local function may refer to itself, so it is usable before its
+        // body is compiled.
+        if (current.scopeDepth > 0) markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OP_JUMP_IF_FALSE);
+        emitOp(OP_POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OP_JUMP);
+        patchJump(thenJump);
+        emitOp(OP_POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OP_PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(OP_RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        int global = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OP_NIL);
+        }
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emitOp(OP_POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitOp(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        namedVariable(expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emitOp(OP_EQUAL); emitOp(OP_NOT); break;
+            case EQUAL_EQUAL: emitOp(OP_EQUAL); break;
+            case GREATER: emitOp(OP_GREATER); break;
+            case GREATER_EQUAL: emitOp(OP_GREATER_EQUAL); break;
+            case LESS: emitOp(OP_LESS); break;
+            case LESS_EQUAL: emitOp(OP_LESS_EQUAL); break;
+            case PLUS: emitOp(OP_ADD); break;
+            case MINUS: emitOp(OP_SUBTRACT); break;
+            case STAR: emitOp(OP_MULTIPLY); break;
+            case SLASH: emitOp(OP_DIVIDE); break;
+            default: emitOp(OP_POP); emitOp(OP_POP); emitOp(OP_NIL); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            // Method calls skip creating a bound method for the callee.
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            int argCount = arguments(expr.arguments);
+            line = get.name.line;
+            emitOp(OP_INVOKE);
+            emitShort(makeConstant(get.name.lexeme));
+            emitByte(argCount);
+            return null;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            namedVariable(superExpr.keyword, "this", false);
+            int argCount = arguments(expr.arguments);
+            namedVariable(superExpr.keyword, "super", false);
+            line = superExpr.method.line;
+            emitOp(OP_SUPER_INVOKE);
+            emitShort(makeConstant(superExpr.method.lexeme));
+            emitByte(argCount);
+            return null;
+        }
+
+        compile(expr.callee);
+        int argCount = arguments(expr.arguments);
+        line = expr.paren.line;
+        emitOp(OP_CALL);
+        emitByte(argCount);
+        return null;
+    }
+
+    private int arguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+        return arguments.size();
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OP_GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OP_NIL);
+        } else {
+            emitOp(OP_CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+            patchJump(elseJump);
+            emitOp(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+            emitOp(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OP_SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable(expr.keyword, "this", false);
+        namedVariable(expr.keyword, "super", false);
+        line = expr.method.line;
+        emitOp(OP_GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG: emitOp(OP_NOT); break;
+            case MINUS: emitOp(OP_NEGATE); break;
+            default: emitOp(OP_POP); emitOp(OP_NIL); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, false);
+        return null;
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        current = new FunctionState(current, type, stmt.name.lexeme);
+        beginScope();
+        for (Token param : stmt.params) {
+            current.function.arity++;
+            declareVariable(param);
+            markInitialized();
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        List<Upvalue> upvalues = current.upvalues;
+        ObjFunction function = endFunction();
+        line = stmt.name.line;
+        emitOp(OP_CLOSURE);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte((upvalue.index >> 8) & 0xff);
+            emitByte(upvalue.index & 0xff);
+        }
+    }
+
+    private ObjFunction endFunction() {
+        emitReturn();
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.seal();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(OP_CLOSE_UPVALUE);
+            } else {
+                emitOp(OP_POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void namedVariable(Token name, boolean assign) {
+        namedVariable(name, name.lexeme, assign);
+    }
+
+    private void namedVariable(Token token, String name, boolean assign) {
+        line = token.line;
+        byte getOp, setOp;
+        int arg = resolveLocal(current, name);
+        if (arg > 0xff) {
+            emitOp(assign ? OP_SET_LOCAL_LONG : OP_GET_LOCAL_LONG);
+            emitByte((arg >> 8) & 0xff);
+            emitByte(arg & 0xff);
+            return;
+        } else if (arg != -1) {
+            getOp = OP_GET_LOCAL;
+            setOp = OP_SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, token, name)) != -1) {
+            getOp = OP_GET_UPVALUE;
+            setOp = OP_SET_UPVALUE;
+        } else {
+            emitOp(assign ? OP_SET_GLOBAL : OP_GET_GLOBAL);
+            emitShort(makeConstant(name));
+            return;
+        }
+
+        emitOp(assign ? setOp : getOp);
+        emitByte(arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            Local local = state.locals.get(i);
+            if (local.depth != -1 && local.name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token token, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, token, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, token, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, token, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, Token token, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            Lox.error(token, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    // Past MAX_LOCALS the local is still added, so that markInitialized()
+    // and endScope() keep to the right ones, but the error is reported only
+    // the first time.
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        if (current.locals.size() >= MAX_LOCALS && !current.tooManyLocals) {
+            current.tooManyLocals = true;
+            Lox.error(name, "Too many local variables in function.");
+        }
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void addLocal(String name) {
+        current.locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void defineVariable(int global) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitOp(OP_DEFINE_GLOBAL);
+        emitShort(global);
+    }
+
+    private int makeConstant(Object value) {
+        return current.function.chunk.addConstant(value);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OP_GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(OP_NIL);
+        }
+        emitOp(OP_RETURN);
+    }
+
+    private int emitJump(byte instruction) {
+        emitOp(instruction);
+        emitByte(0xff);
+        emitByte(0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OP_LOOP);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+
+    private void emitOp(byte op) {
+        current.function.chunk.write(op, line);
+    }
+
+    private void emitByte(int value) {
+        current.function.chunk.write((byte) value, line);
+    }
+
+    private void emitShort(int value) {
+        if (value > 0xffff && !current.tooManyConstants) {
+            current.tooManyConstants = true;
+            Lox.error(line, "Too many constants in one chunk.");
+        }
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+}
@@ -0,0 +1,18 @@
+package com.interpreter.lox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjClass {
+    final String name;
+    final Map<String, ObjClosure> methods = new HashMap<>();
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
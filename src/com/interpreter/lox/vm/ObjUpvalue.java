@@ -0,0 +1,18 @@
+package com.interpreter.lox.vm;
+
+// A variable captured by a closure. While the variable's frame is live the
+// upvalue is open and refers to its stack slot; once the frame is gone the
+// value is moved into the upvalue itself.
+class ObjUpvalue {
+    int location;
+    Object closed;
+    ObjUpvalue next;
+
+    ObjUpvalue(int location) {
+        this.location = location;
+    }
+
+    boolean isOpen() {
+        return location >= 0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.interpreter.lox.vm;
+
+// Instruction set of the bytecode VM. Operands follow the opcode in the
+// code array: constant and name operands are 16-bit constant pool indices,
+// slot and argument counts are single bytes, jump offsets are 16-bit. The
+// _LONG forms of the local instructions take a 16-bit slot, for functions
+// with more than 256 locals.
+final class OpCode {
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_POP = 2;
+    static final byte OP_GET_LOCAL = 3;
+    static final byte OP_SET_LOCAL = 4;
+    static final byte OP_GET_GLOBAL = 5;
+    static final byte OP_DEFINE_GLOBAL = 6;
+    static final byte OP_SET_GLOBAL = 7;
+    static final byte OP_GET_UPVALUE = 8;
+    static final byte OP_SET_UPVALUE = 9;
+    static final byte OP_GET_PROPERTY = 10;
+    static final byte OP_SET_PROPERTY = 11;
+    static final byte OP_GET_SUPER = 12;
+    static final byte OP_EQUAL = 13;
+    static final byte OP_GREATER = 14;
+    static final byte OP_GREATER_EQUAL = 15;
+    static final byte OP_LESS = 16;
+    static final byte OP_LESS_EQUAL = 17;
+    static final byte OP_ADD = 18;
+    static final byte OP_SUBTRACT = 19;
+    static final byte OP_MULTIPLY = 20;
+    static final byte OP_DIVIDE = 21;
+    static final byte OP_NOT = 22;
+    static final byte OP_NEGATE = 23;
+    static final byte OP_PRINT = 24;
+    static final byte OP_JUMP = 25;
+    static final byte OP_JUMP_IF_FALSE = 26;
+    static final byte OP_LOOP = 27;
+    static final byte OP_CALL = 28;
+    static final byte OP_INVOKE = 29;
+    static final byte OP_SUPER_INVOKE = 30;
+    static final byte OP_CLOSURE = 31;
+    static final byte OP_CLOSE_UPVALUE = 32;
+    static final byte OP_RETURN = 33;
+    static final byte OP_CLASS = 34;
+    static final byte OP_INHERIT = 35;
+    static final byte OP_METHOD = 36;
+    static final byte OP_GET_LOCAL_LONG = 37;
+    static final byte OP_SET_LOCAL_LONG = 38;
+
+    private OpCode() {
+    }
+}
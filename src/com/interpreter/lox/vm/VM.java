@@ -0,0 +1,579 @@
+package com.interpreter.lox.vm;
+
+import com.interpreter.lox.Lox;
+import com.interpreter.lox.util.RuntimeError;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.interpreter.lox.vm.OpCode.*;
+
+// Stack based virtual machine executing the bytecode produced by Compiler.
+// Lox calls push a CallFrame instead of recursing on the Java stack. The
+// frame and value stacks live on the heap and grow as they fill, so the
+// call depth is only limited by the maximum the VM is created with.
+public class VM {
+    public static final int DEFAULT_MAX_FRAMES = 1 << 20;
+    private static final int INITIAL_FRAMES = 64;
+    private static final int INITIAL_STACK = 16384;
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        int slots;
+    }
+
+    private final int maxFrames;
+    private Object[] stack = new Object[INITIAL_STACK];
+    private int stackTop = 0;
+    private CallFrame[] frames;
+    private int frameCount = 0;
+    private final Map<String, Object> globals = new HashMap<>();
+    private ObjUpvalue openUpvalues = null;
+
+    public VM(int maxFrames) {
+        this.maxFrames = maxFrames;
+        this.frames = new CallFrame[Math.min(INITIAL_FRAMES, maxFrames)];
+        globals.put("clock", new ObjNative(0,
+                arguments -> (double) System.currentTimeMillis() / 1000.0));
+    }
+
+    public void interpret(ObjFunction script) {
+        ObjClosure closure = new ObjClosure(script);
+        push(closure);
+        try {
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        for (int i = 0; i < stackTop; i++) stack[i] = null;
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+
+        while (true) {
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case OP_CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    push(constants[index]);
+                    break;
+                }
+                case OP_NIL: push(null); break;
+                case OP_POP: stack[--stackTop] = null; break;
+                case OP_GET_LOCAL: {
+                    int slot = code[ip++] & 0xff;
+                    push(stack[frame.slots + slot]);
+                    break;
+                }
+                case OP_SET_LOCAL: {
+                    int slot = code[ip++] & 0xff;
+                    stack[frame.slots + slot] = peek(0);
+                    break;
+                }
+                case OP_GET_LOCAL_LONG: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    push(stack[frame.slots + slot]);
+                    break;
+                }
+                case OP_SET_LOCAL_LONG: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[frame.slots + slot] = peek(0);
+                    break;
+                }
+                case OP_GET_GLOBAL: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + name + "'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case OP_DEFINE_GLOBAL: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    globals.put(name, pop());
+                    break;
+                }
+                case OP_SET_GLOBAL: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + name + "'.");
+                    }
+                    globals.put(name, peek(0));
+                    break;
+                }
+                case OP_GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.isOpen() ? stack[upvalue.location] : upvalue.closed);
+                    break;
+                }
+                case OP_SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.isOpen()) {
+                        stack[upvalue.location] = peek(0);
+                    } else {
+                        upvalue.closed = peek(0);
+                    }
+                    break;
+                }
+                case OP_GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    if (!(peek(0) instanceof ObjInstance)) {
+                        throw error("Only instances have properties.");
+                    }
+                    ObjInstance instance = (ObjInstance) peek(0);
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    bindMethod(instance.klass, name);
+                    break;
+                }
+                case OP_SET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!(peek(1) instanceof ObjInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    ObjInstance instance = (ObjInstance) peek(1);
+                    Object value = pop();
+                    instance.fields.put(name, value);
+                    stack[stackTop - 1] = value;
+                    break;
+                }
+                case OP_GET_SUPER: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    ObjClass superclass = (ObjClass) pop();
+                    bindMethod(superclass, name);
+                    break;
+                }
+                case OP_EQUAL: {
+                    Object b = pop();
+                    Object a = pop();
+                    push(isEqual(a, b));
+                    break;
+                }
+                case OP_GREATER: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a > b);
+                    break;
+                }
+                case OP_GREATER_EQUAL: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a >= b);
+                    break;
+                }
+                case OP_LESS: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a < b);
+                    break;
+                }
+                case OP_LESS_EQUAL: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a <= b);
+                    break;
+                }
+                case OP_ADD: {
+                    Object b = peek(0);
+                    Object a = peek(1);
+                    Object result;
+                    if (a instanceof Double && b instanceof Double) {
+                        result = (double) a + (double) b;
+                    } else if (a instanceof String && b instanceof String) {
+                        result = (String) a + (String) b;
+                    } else if (a instanceof String && b instanceof Double) {
+                        result = a + stringify(b);
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers or strings");
+                    }
+                    stackTop -= 2;
+                    stack[stackTop + 1] = null;
+                    push(result);
+                    break;
+                }
+                case OP_SUBTRACT: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a - b);
+                    break;
+                }
+                case OP_MULTIPLY: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a * b);
+                    break;
+                }
+                case OP_DIVIDE: {
+                    checkNumberOperands(frame, ip);
+                    double b = (double) pop();
+                    double a = (double) pop();
+                    push(a / b);
+                    break;
+                }
+                case OP_NOT:
+                    push(!isTruthy(pop()));
+                    break;
+                case OP_NEGATE: {
+                    if (!(peek(0) instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number");
+                    }
+                    push(-(double) pop());
+                    break;
+                }
+                case OP_PRINT:
+                    System.out.println(stringify(pop()));
+                    break;
+                case OP_JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OP_JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!isTruthy(peek(0))) ip += offset;
+                    break;
+                }
+                case OP_LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+                case OP_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(peek(argCount), argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OP_INVOKE: {
+                    String method = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OP_SUPER_INVOKE: {
+                    String method = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    ObjClass superclass = (ObjClass) pop();
+                    invokeFromClass(superclass, method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OP_CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    push(closure);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(frame.slots + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    break;
+                }
+                case OP_CLOSE_UPVALUE:
+                    closeUpvalues(stackTop - 1);
+                    stack[--stackTop] = null;
+                    break;
+                case OP_RETURN: {
+                    Object result = pop();
+                    closeUpvalues(frame.slots);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        stack[--stackTop] = null;
+                        return;
+                    }
+                    for (int i = frame.slots; i < stackTop; i++) stack[i] = null;
+                    stackTop = frame.slots;
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OP_CLASS: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    push(new ObjClass(name));
+                    break;
+                }
+                case OP_INHERIT: {
+                    Object superclass = peek(1);
+                    if (!(superclass instanceof ObjClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    ObjClass subclass = (ObjClass) peek(0);
+                    subclass.methods.putAll(((ObjClass) superclass).methods);
+                    stack[--stackTop] = null;
+                    break;
+                }
+                case OP_METHOD: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) pop();
+                    ((ObjClass) peek(0)).methods.put(name, method);
+                    break;
+                }
+                default:
+                    frame.ip = ip;
+                    throw error("Unknown opcode " + instruction + ".");
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount);
+            return;
+        }
+        if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+        if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[stackTop - argCount - 1] = new ObjInstance(klass);
+            ObjClosure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw arityError(0, argCount);
+            }
+            return;
+        }
+        if (callee instanceof ObjNative) {
+            ObjNative function = (ObjNative) callee;
+            if (argCount != function.arity) {
+                throw arityError(function.arity, argCount);
+            }
+            Object[] arguments = new Object[argCount];
+            System.arraycopy(stack, stackTop - argCount, arguments, 0, argCount);
+            Object result = function.function.call(arguments);
+            for (int i = stackTop - argCount - 1; i < stackTop; i++) stack[i] = null;
+            stackTop -= argCount + 1;
+            push(result);
+            return;
+        }
+        throw error("Can only call functions and classes.");
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = peek(argCount);
+        if (!(receiver instanceof ObjInstance)) {
+            throw error("Only instances have properties.");
+        }
+        ObjInstance instance = (ObjInstance) receiver;
+        Object value = instance.fields.get(name);
+        if (value != null || instance.fields.containsKey(name)) {
+            stack[stackTop - argCount - 1] = value;
+            callValue(value, argCount);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(ObjClass klass, String name, int argCount) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private void bindMethod(ObjClass klass, String name) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        stack[stackTop - 1] = new ObjBoundMethod(peek(0), method);
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw arityError(closure.function.arity, argCount);
+        }
+        // 'return f(...);' compiles to the call followed by OP_RETURN. Such a
+        // call takes over the caller's frame instead of pushing a new one,
+        // so tail calls run in constant stack.
+        CallFrame caller = frameCount > 1 ? frames[frameCount - 1] : null;
+        if (caller != null && caller.closure.function.chunk.code[caller.ip] == OP_RETURN) {
+            closeUpvalues(caller.slots);
+            int top = caller.slots + argCount + 1;
+            System.arraycopy(stack, stackTop - argCount - 1, stack, caller.slots, argCount + 1);
+            for (int i = top; i < stackTop; i++) stack[i] = null;
+            stackTop = top;
+            caller.closure = closure;
+            caller.ip = 0;
+            return;
+        }
+        if (frameCount == frames.length) growFrames();
+        CallFrame frame = frames[frameCount];
+        if (frame == null) frame = frames[frameCount] = new CallFrame();
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private void growFrames() {
+        if (frameCount >= maxFrames) {
+            throw error("Stack overflow.");
+        }
+        frames = Arrays.copyOf(frames, (int) Math.min((long) frames.length * 2, maxFrames));
+    }
+
+    private ObjUpvalue captureUpvalue(int location) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+
+        ObjUpvalue created = new ObjUpvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip) {
+        if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+        frame.ip = ip;
+        throw error("Operands must be numbers");
+    }
+
+    private RuntimeError arityError(int arity, int argCount) {
+        return error("Expected " + arity + " arguments but got " + argCount + ".");
+    }
+
+    // Errors are reported against the line of the instruction that was
+    // executing in the innermost frame.
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int instruction = Math.max(frame.ip - 1, 0);
+        return new RuntimeError(frame.closure.function.chunk.lines[instruction], message);
+    }
+
+    // A function's locals and temporaries have no fixed bound, so the
+    // stack grows here rather than being reserved when a frame is pushed.
+    private void push(Object value) {
+        if (stackTop == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--stackTop];
+        stack[stackTop] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+
+    private boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private boolean isEqual(Object left, Object right) {
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        return left.equals(right);
+    }
+
+    private String stringify(Object value) {
+        if (value == null) return "nil";
+
+        if (value instanceof Double) {
+            String text = value.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return value.toString();
+    }
+}
@@ -14,31 +14,43 @@ public class GenerateAST {
         }
         String outputDir = args[0];
 
+        // Fields after '|' are not constructor arguments: they are mutable
+        // and filled in by the Resolver, or by the Interpreter's inline
+        // caches. A depth of -1 marks a global, whose slot the Interpreter
+        // caches on first use; 0 a slot of the running function's frame,
+        // holding an Upvalue when cell is set; and 1 one of the function's
+        // upvalues, whose index is the slot. Captures list where a closure
+        // takes its upvalues from: a frame slot, or -1 - i for upvalue i of
+        // the function creating it.
         defineAST(outputDir, "Expr", Arrays.asList(
-                "Assign: Token name, Expr value",
+                "Assign: Token name, Expr value | int depth = -1, int slot = -1, boolean cell",
                 "Binary : Expr left, Token operator, Expr right",
-                "Call : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Call : Expr callee, Token paren, List<Expr> arguments | Object cache, boolean tailCall",
+                "Get      : Expr object, Token name | Object cache",
                 "Grouping : Expr expression",
                 "Literal : Object value",
                 "Logical : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Set      : Expr object, Token name, Expr value | Object cache",
+                "Super    : Token keyword, Token method | int slot = -1, int thisDepth = -1,"
+                        + " int thisSlot = -1, boolean thisCell",
+                "This     : Token keyword | int depth = -1, int slot = -1, boolean cell",
                 "Unary : Token operator, Expr right",
-                "Variable: Token name"
+                "Variable: Token name | int depth = -1, int slot = -1, boolean cell"
         ));
 
         defineAST(outputDir, "Stmt", Arrays.asList(
-                "Block: List<Stmt> statements",
+                "Block: List<Stmt> statements | int frameSize, boolean flattened",
                 "Class      : Token name, Expr.Variable superclass," +
-                        " List<Stmt.Function> methods",
+                        " List<Stmt.Function> methods | int slot = -1, boolean cell," +
+                        " int[] captures",
                 "Expression : Expr expression",
-                "Function: Token name, List<Token> params, List<Stmt> body",
+                "Function: Token name, List<Token> params, List<Stmt> body" +
+                        " | int slot = -1, int frameSize, boolean cell, int[] captures," +
+                        " int[] cellParameters",
                 "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print : Expr expression",
                 "Return: Token keyword, Expr value",
-                "Var: Token name, Expr initializer",
+                "Var: Token name, Expr initializer | int slot = -1, boolean cell",
                 "While : Expr condition, Stmt body"
 
         ));
@@ -62,9 +74,10 @@ public class GenerateAST {
 
         for(String type: types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
+            String[] fields = type.split(":")[1].split("\\|");
+            String resolvedFields = fields.length > 1 ? fields[1].trim() : null;
 
-            defineType(writer, baseName, className, fields);
+            defineType(writer, baseName, className, fields[0].trim(), resolvedFields);
         }
 
         writer.println();
@@ -87,7 +100,8 @@ public class GenerateAST {
         writer.println("    }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldsList) {
+    private static void defineType(PrintWriter writer, String baseName, String className,
+                                   String fieldsList, String resolvedFieldsList) {
         writer.println("    public static class " + className + " extends " + baseName + " {");
         writer.println("        " + className + "(" + fieldsList + ") {");
 
@@ -104,6 +118,11 @@ public class GenerateAST {
         for(String field: fields) {
             writer.println("        public final " + field + ";");
         }
+        if(resolvedFieldsList != null) {
+            for(String field: resolvedFieldsList.split(",")) {
+                writer.println("        public " + field.trim() + ";");
+            }
+        }
 
         writer.println();
         writer.println("        @Override");